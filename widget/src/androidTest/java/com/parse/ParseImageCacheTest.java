@@ -0,0 +1,91 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse;
+
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+
+import com.parse.ui.widget.ParseImageCache;
+
+public class ParseImageCacheTest extends InstrumentationTestCase {
+
+  private static final int BITMAP_SIZE = 10 * 10 * 4;
+
+  private ParseImageCache cache;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    cache = ParseImageCache.getInstance();
+    cache.evictAll();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    cache.evictAll();
+    cache.setMaxSize((int) (Runtime.getRuntime().maxMemory() / 8));
+    super.tearDown();
+  }
+
+  private static Bitmap createBitmap() {
+    return Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+  }
+
+  public void testGetIsKeyedByUrlAndSize() {
+    Bitmap bitmap = createBitmap();
+    cache.put("http://parse.com/a.png", 10, 10, bitmap);
+
+    assertSame(bitmap, cache.get("http://parse.com/a.png", 10, 10));
+    assertNull(cache.get("http://parse.com/a.png", 20, 20));
+    assertNull(cache.get("http://parse.com/b.png", 10, 10));
+    assertNull(cache.get(null, 10, 10));
+  }
+
+  public void testCounters() {
+    int hits = cache.hitCount();
+    int misses = cache.missCount();
+
+    cache.put("http://parse.com/a.png", 10, 10, createBitmap());
+    cache.get("http://parse.com/a.png", 10, 10);
+    cache.get("http://parse.com/b.png", 10, 10);
+
+    assertEquals(hits + 1, cache.hitCount());
+    assertEquals(misses + 1, cache.missCount());
+  }
+
+  public void testEvictsLeastRecentlyUsed() {
+    cache.setMaxSize(2 * BITMAP_SIZE);
+    int evictions = cache.evictionCount();
+
+    cache.put("http://parse.com/a.png", 10, 10, createBitmap());
+    cache.put("http://parse.com/b.png", 10, 10, createBitmap());
+    // Touch a so that b is the least recently used
+    cache.get("http://parse.com/a.png", 10, 10);
+    cache.put("http://parse.com/c.png", 10, 10, createBitmap());
+
+    assertEquals(evictions + 1, cache.evictionCount());
+    assertEquals(2 * BITMAP_SIZE, cache.size());
+    assertNotNull(cache.get("http://parse.com/a.png", 10, 10));
+    assertNull(cache.get("http://parse.com/b.png", 10, 10));
+    assertNotNull(cache.get("http://parse.com/c.png", 10, 10));
+  }
+}
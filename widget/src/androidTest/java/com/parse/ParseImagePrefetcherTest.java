@@ -0,0 +1,234 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse;
+
+import android.test.InstrumentationTestCase;
+import android.widget.AbsListView;
+import android.widget.ListView;
+
+import com.parse.ui.widget.ParseImageCache;
+import com.parse.ui.widget.ParseImagePrefetcher;
+import com.parse.ui.widget.ParseQueryAdapter;
+import com.parse.ui.widget.ParseQueryAdapter.OnQueryLoadListener;
+
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ParseImagePrefetcherTest extends InstrumentationTestCase {
+
+  private static final int OBJECT_COUNT = 20;
+  private static final int DISTANCE = 3;
+  // The row of an evicted page, which has no image to prefetch
+  private static final int STUB_POSITION = 12;
+
+  private List<ParseObject> photos;
+  private List<ParseFile> files;
+  private List<TaskCompletionSource<InputStream>> fetches;
+  // The rows whose images were requested
+  private Set<Integer> requestedPositions;
+  private ListView listView;
+  private ParseQueryAdapter<ParseObject> adapter;
+  private ParseImagePrefetcher prefetcher;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    ParseImageCache.getInstance().evictAll();
+
+    photos = new ArrayList<>();
+    files = new ArrayList<>();
+    fetches = Collections.synchronizedList(new ArrayList<TaskCompletionSource<InputStream>>());
+    requestedPositions = Collections.synchronizedSet(new HashSet<Integer>());
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      ParseFile file = mockFile(i);
+      files.add(file);
+      ParseObject photo;
+      if (i == STUB_POSITION) {
+        photo = ParseObject.createWithoutData("Photo", String.valueOf(i));
+      } else {
+        photo = ParseObject.create("Photo");
+        photo.setObjectId(String.valueOf(i));
+        photo.put("image", file);
+      }
+      photos.add(photo);
+    }
+
+    ParseQueryController queryController = mock(ParseQueryController.class);
+    when(queryController.findAsync(
+        any(ParseQuery.State.class), any(ParseUser.class), Matchers.<Task<Void>>any()))
+        .thenAnswer(new Answer<Task<List<ParseObject>>>() {
+          @Override
+          public Task<List<ParseObject>> answer(InvocationOnMock invocation) throws Throwable {
+            return Task.<List<ParseObject>>forResult(new ArrayList<>(photos));
+          }
+        });
+    ParseCorePlugins.getInstance().registerQueryController(queryController);
+
+    ParseCurrentUserController currentUserController = mock(ParseCurrentUserController.class);
+    when(currentUserController.getAsync()).thenReturn(Task.forResult(mock(ParseUser.class)));
+    when(currentUserController.getCurrentSessionTokenAsync())
+        .thenReturn(Task.<String>forResult(null));
+    ParseCorePlugins.getInstance().registerCurrentUserController(currentUserController);
+
+    listView = new ListView(getInstrumentation().getTargetContext());
+    adapter = new ParseQueryAdapter<>(getInstrumentation().getTargetContext(), "Photo");
+    adapter.setImageKey("image");
+    final Semaphore done = new Semaphore(0);
+    adapter.addOnQueryLoadListener(new OnQueryLoadListener<ParseObject>() {
+      @Override
+      public void onLoading() {
+      }
+
+      @Override
+      public void onLoaded(List<ParseObject> objects, Exception e) {
+        done.release();
+      }
+    });
+    adapter.loadObjects();
+    assertTrue(done.tryAcquire(10, TimeUnit.SECONDS));
+    // Binding a row tells the adapter what size its images are displayed at
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        adapter.getItemView(photos.get(0), null, listView);
+      }
+    });
+    requestedPositions.clear();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    if (prefetcher != null) {
+      prefetcher.cancel();
+    }
+    // Lets go of any worker still waiting on a fetch
+    synchronized (fetches) {
+      for (TaskCompletionSource<InputStream> fetch : fetches) {
+        fetch.trySetCancelled();
+      }
+    }
+    ParseImageCache.getInstance().evictAll();
+    ParseCorePlugins.getInstance().reset();
+    super.tearDown();
+  }
+
+  /**
+   * @return a file whose fetch only completes when it's cancelled.
+   */
+  private ParseFile mockFile(final int position) {
+    ParseFile file = mock(ParseFile.class);
+    when(file.getUrl()).thenAnswer(new Answer<String>() {
+      @Override
+      public String answer(InvocationOnMock invocation) throws Throwable {
+        requestedPositions.add(position);
+        return "http://parse.com/prefetched" + position + ".png";
+      }
+    });
+    final TaskCompletionSource<InputStream> fetch = new TaskCompletionSource<>();
+    fetches.add(fetch);
+    when(file.getDataStreamInBackground()).thenReturn(fetch.getTask());
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        fetch.trySetCancelled();
+        return null;
+      }
+    }).when(file).cancel();
+    return file;
+  }
+
+  private static Set<Integer> positions(Integer... positions) {
+    return new HashSet<>(Arrays.asList(positions));
+  }
+
+  public void testPrefetchesRowsPastVisibleRange() {
+    prefetcher = new ParseImagePrefetcher(adapter, DISTANCE);
+
+    prefetcher.onScroll(listView, 0, 5, OBJECT_COUNT);
+    assertEquals(positions(5, 6, 7), requestedPositions);
+
+    // Only the rows that came into range are added
+    prefetcher.onScroll(listView, 2, 5, OBJECT_COUNT);
+    assertEquals(positions(5, 6, 7, 8, 9), requestedPositions);
+  }
+
+  public void testReversingDirectionCancelsPrefetches() {
+    prefetcher = new ParseImagePrefetcher(adapter, DISTANCE);
+    prefetcher.onScroll(listView, 10, 5, OBJECT_COUNT);
+    assertEquals(positions(15, 16, 17), requestedPositions);
+    requestedPositions.clear();
+
+    prefetcher.onScroll(listView, 9, 5, OBJECT_COUNT);
+
+    // The rows above the visible ones are prefetched instead
+    assertEquals(positions(6, 7, 8), requestedPositions);
+    for (int i = 15; i <= 17; i++) {
+      verify(files.get(i), timeout(1000)).cancel();
+    }
+    verify(files.get(6), never()).cancel();
+  }
+
+  public void testSkipsStubs() {
+    prefetcher = new ParseImagePrefetcher(adapter, DISTANCE);
+
+    prefetcher.onScroll(listView, STUB_POSITION - 7, 5, OBJECT_COUNT);
+
+    assertEquals(positions(STUB_POSITION - 2, STUB_POSITION - 1), requestedPositions);
+  }
+
+  public void testForwardsToDelegate() {
+    AbsListView.OnScrollListener delegate = mock(AbsListView.OnScrollListener.class);
+    prefetcher = new ParseImagePrefetcher(adapter, DISTANCE, delegate);
+
+    prefetcher.onScrollStateChanged(listView, AbsListView.OnScrollListener.SCROLL_STATE_FLING);
+    prefetcher.onScroll(listView, 0, 5, OBJECT_COUNT);
+    // Also forwarded when there is nothing to prefetch
+    prefetcher.onScroll(listView, 0, 5, OBJECT_COUNT);
+
+    verify(delegate).onScrollStateChanged(
+        listView, AbsListView.OnScrollListener.SCROLL_STATE_FLING);
+    verify(delegate, times(2)).onScroll(listView, 0, 5, OBJECT_COUNT);
+  }
+}
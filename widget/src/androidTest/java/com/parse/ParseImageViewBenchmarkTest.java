@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.ViewGroup;
+
+import com.parse.ui.widget.ParseImageView;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import bolts.Task;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the time spent on the UI thread and the size of the decoded bitmap when displaying a
+ * large image in a small {@link ParseImageView}, against decoding the full image on the UI thread.
+ */
+public class ParseImageViewBenchmarkTest extends InstrumentationTestCase {
+
+  private static final String TAG = "ParseImageViewBenchmark";
+
+  private static final int IMAGE_SIZE = 2048;
+  private static final int VIEW_SIZE = 100;
+  private static final int ITERATIONS = 5;
+
+  private static class TimedParseImageView extends ParseImageView {
+    long uiThreadNanos;
+    int byteCount;
+
+    TimedParseImageView(Context context) {
+      super(context);
+    }
+
+    @Override
+    public void setImageBitmap(Bitmap bitmap) {
+      long start = SystemClock.elapsedRealtimeNanos();
+      super.setImageBitmap(bitmap);
+      uiThreadNanos += SystemClock.elapsedRealtimeNanos() - start;
+      byteCount = Math.max(byteCount, bitmap.getByteCount());
+    }
+  }
+
+  private static byte[] createImageData() {
+    Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.ARGB_8888);
+    Paint paint = new Paint();
+    paint.setShader(new LinearGradient(
+        0, 0, IMAGE_SIZE, IMAGE_SIZE, Color.RED, Color.BLUE, Shader.TileMode.CLAMP));
+    new Canvas(bitmap).drawRect(0, 0, IMAGE_SIZE, IMAGE_SIZE, paint);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.JPEG, 90, stream);
+    bitmap.recycle();
+    return stream.toByteArray();
+  }
+
+  public void testDecodeOffMainThreadBenchmark() throws Exception {
+    final byte[] data = createImageData();
+    final Context context = getInstrumentation().getTargetContext();
+
+    // The previous path: decode the full image on the UI thread.
+    final long[] legacyNanos = new long[1];
+    final int[] legacyByteCount = new int[1];
+    for (int i = 0; i < ITERATIONS; i++) {
+      getInstrumentation().runOnMainSync(new Runnable() {
+        @Override
+        public void run() {
+          ParseImageView imageView = new ParseImageView(context);
+          long start = SystemClock.elapsedRealtimeNanos();
+          Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+          imageView.setImageBitmap(bitmap);
+          legacyNanos[0] += SystemClock.elapsedRealtimeNanos() - start;
+          legacyByteCount[0] = Math.max(legacyByteCount[0], bitmap.getByteCount());
+        }
+      });
+    }
+
+    ParseFile file = mock(ParseFile.class);
+    when(file.getDataInBackground()).thenReturn(Task.forResult(data));
+    when(file.getDataStreamInBackground()).thenAnswer(new Answer<Task<InputStream>>() {
+      @Override
+      public Task<InputStream> answer(InvocationOnMock invocation) throws Throwable {
+        return Task.<InputStream>forResult(new ByteArrayInputStream(data));
+      }
+    });
+
+    long uiThreadNanos = 0;
+    int byteCount = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      TimedParseImageView imageView = new TimedParseImageView(context);
+      imageView.setLayoutParams(new ViewGroup.LayoutParams(VIEW_SIZE, VIEW_SIZE));
+      imageView.setParseFile(file);
+      ParseTaskUtils.wait(imageView.loadInBackground());
+      uiThreadNanos += imageView.uiThreadNanos;
+      byteCount = Math.max(byteCount, imageView.byteCount);
+    }
+
+    Log.i(TAG, String.format(
+        "UI thread per image: %.2fms -> %.2fms, peak bitmap size: %d -> %d bytes",
+        legacyNanos[0] / 1e6 / ITERATIONS, uiThreadNanos / 1e6 / ITERATIONS,
+        legacyByteCount[0], byteCount));
+
+    assertTrue(uiThreadNanos < legacyNanos[0]);
+    assertTrue(byteCount < legacyByteCount[0]);
+  }
+}
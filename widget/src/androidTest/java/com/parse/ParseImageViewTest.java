@@ -26,21 +26,46 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.test.InstrumentationTestCase;
+import android.view.ViewGroup;
 
+import com.parse.ui.widget.ParseBitmapPool;
+import com.parse.ui.widget.ParseImageCache;
+import com.parse.ui.widget.ParseImageDiskCache;
 import com.parse.ui.widget.ParseImageView;
 import com.parse.widget.test.R;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.concurrent.Semaphore;
 
 import bolts.Task;
+import bolts.TaskCompletionSource;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class ParseImageViewTest extends InstrumentationTestCase {
 
+  private static void mockData(ParseFile file, final byte[] data) {
+    when(file.getDataInBackground()).thenReturn(Task.forResult(data));
+    when(file.getDataStreamInBackground()).thenAnswer(new Answer<Task<InputStream>>() {
+      @Override
+      public Task<InputStream> answer(InvocationOnMock invocation) throws Throwable {
+        return Task.<InputStream>forResult(new ByteArrayInputStream(data));
+      }
+    });
+  }
+
   public void testParseImageViewWithNullParseFile() throws Exception {
     final Drawable drawable = new ColorDrawable();
     final ParseImageView imageView = new ParseImageView(getInstrumentation().getTargetContext());
@@ -56,7 +81,7 @@ public class ParseImageViewTest extends InstrumentationTestCase {
   public void testParseImageViewWithNotImageParseFile() throws Exception {
     byte[] data = "hello".getBytes();
     ParseFile file = mock(ParseFile.class);
-    when(file.getDataInBackground()).thenReturn(Task.forResult(data));
+    mockData(file, data);
 
     final Drawable drawable = new ColorDrawable();
     final ParseImageView imageView = new ParseImageView(getInstrumentation().getTargetContext());
@@ -79,7 +104,7 @@ public class ParseImageViewTest extends InstrumentationTestCase {
     final byte[] imageData = stream.toByteArray();
 
     ParseFile file = mock(ParseFile.class);
-    when(file.getDataInBackground()).thenReturn(Task.forResult(imageData));
+    mockData(file, imageData);
 
     final Drawable drawable = new ColorDrawable();
     final ParseImageView imageView = new ParseImageView(context);
@@ -94,6 +119,244 @@ public class ParseImageViewTest extends InstrumentationTestCase {
     // been changed
     assertNotSame(drawable, imageView.getDrawable());
   }
-}
 
+  public void testReleasedImageIsPooled() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      // Bitmaps can only be reused on KitKat and above.
+      return;
+    }
+    Bitmap bitmap = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+    final byte[] imageData = stream.toByteArray();
+
+    ParseFile file = mock(ParseFile.class);
+    when(file.getUrl()).thenReturn("http://parse.com/pooled.png");
+    mockData(file, imageData);
+
+    ParseImageCache.getInstance().evictAll();
+    ParseBitmapPool pool = ParseBitmapPool.getInstance();
+    pool.clear();
+
+    ParseImageView imageView = new ParseImageView(getInstrumentation().getTargetContext());
+    imageView.setLayoutParams(new ViewGroup.LayoutParams(50, 50));
+    imageView.setParseFile(file);
+    ParseTaskUtils.wait(imageView.loadBitmapInBackground());
+    assertEquals(0, pool.size());
+
+    // Still cached, so it can't be reused yet
+    imageView.setParseFile(null);
+    assertEquals(0, pool.size());
+
+    ParseImageCache.getInstance().evictAll();
+    assertTrue(pool.size() > 0);
+    pool.clear();
+  }
+
+  public void testConcurrentLoadsOfSameFileAreCoalesced() throws Exception {
+    Bitmap bitmap = Bitmap.createBitmap(20, 20, Bitmap.Config.ARGB_8888);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+
+    TaskCompletionSource<InputStream> tcs = new TaskCompletionSource<>();
+    ParseFile file = mock(ParseFile.class);
+    when(file.getUrl()).thenReturn("http://parse.com/coalesced.png");
+    when(file.getDataStreamInBackground()).thenReturn(tcs.getTask());
+    ParseImageCache.getInstance().evictAll();
+
+    Context context = getInstrumentation().getTargetContext();
+    ParseImageView cancelledView = new ParseImageView(context);
+    cancelledView.setParseFile(file);
+    Task<Bitmap> cancelledTask = cancelledView.loadBitmapInBackground();
+    ParseImageView imageView = new ParseImageView(context);
+    imageView.setParseFile(file);
+    Task<Bitmap> task = imageView.loadBitmapInBackground();
+
+    // Cancelling one view's load shouldn't cancel the other's.
+    cancelledView.setParseFile(null);
+    tcs.setResult(new ByteArrayInputStream(stream.toByteArray()));
+
+    assertNotNull(ParseTaskUtils.wait(task));
+    assertTrue(cancelledTask.isCancelled());
+    verify(file, times(1)).getDataStreamInBackground();
+    verify(file, never()).cancel();
+  }
+
+  public void testRebindingSameFileKeepsItsLoad() throws Exception {
+    Bitmap bitmap = Bitmap.createBitmap(20, 20, Bitmap.Config.ARGB_8888);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+
+    TaskCompletionSource<InputStream> tcs = new TaskCompletionSource<>();
+    ParseFile file = mock(ParseFile.class);
+    when(file.getUrl()).thenReturn("http://parse.com/rebound.png");
+    when(file.getDataStreamInBackground()).thenReturn(tcs.getTask());
+    ParseImageCache.getInstance().evictAll();
+
+    ParseImageView imageView = new ParseImageView(getInstrumentation().getTargetContext());
+    imageView.setParseFile(file);
+    imageView.loadBitmapInBackground();
+    // As an adapter does when notified while the image is loading
+    imageView.setParseFile(file);
+    Task<Bitmap> task = imageView.loadBitmapInBackground();
+    tcs.setResult(new ByteArrayInputStream(stream.toByteArray()));
+
+    assertNotNull(ParseTaskUtils.wait(task));
+    verify(file, times(1)).getDataStreamInBackground();
+    verify(file, never()).cancel();
+  }
+
+  public void testDownsampledImageIsLoadedFromDiskCache() throws Exception {
+    Bitmap bitmap = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+
+    ParseFile file = mock(ParseFile.class);
+    when(file.getUrl()).thenReturn("http://parse.com/disk.png");
+    mockData(file, stream.toByteArray());
 
+    Context context = getInstrumentation().getTargetContext();
+    ParseImageDiskCache diskCache = ParseImageDiskCache.getInstance(context);
+    diskCache.clear();
+    ParseImageCache.getInstance().evictAll();
+
+    ParseImageView imageView = new ParseImageView(context);
+    imageView.setLayoutParams(new ViewGroup.LayoutParams(50, 50));
+    imageView.setParseFile(file);
+    ParseTaskUtils.wait(imageView.loadBitmapInBackground());
+    // The thumbnail is written after the image is displayed.
+    for (int i = 0; i < 50 && diskCache.size() == 0; i++) {
+      Thread.sleep(20);
+    }
+    assertTrue(diskCache.size() > 0);
+
+    // Simulate a cold start
+    ParseImageCache.getInstance().evictAll();
+    ParseImageView coldImageView = new ParseImageView(context);
+    coldImageView.setLayoutParams(new ViewGroup.LayoutParams(50, 50));
+    coldImageView.setParseFile(file);
+    Bitmap loaded = ParseTaskUtils.wait(coldImageView.loadBitmapInBackground());
+
+    assertEquals(50, loaded.getWidth());
+    assertEquals(50, loaded.getHeight());
+    verify(file, times(1)).getDataStreamInBackground();
+    diskCache.clear();
+  }
+
+  public void testSlightlySmallerViewSharesDiskCachedImage() throws Exception {
+    Bitmap bitmap = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+
+    ParseFile file = mock(ParseFile.class);
+    when(file.getUrl()).thenReturn("http://parse.com/shared.png");
+    mockData(file, stream.toByteArray());
+
+    Context context = getInstrumentation().getTargetContext();
+    ParseImageDiskCache diskCache = ParseImageDiskCache.getInstance(context);
+    diskCache.clear();
+    ParseImageCache.getInstance().evictAll();
+
+    ParseImageView imageView = new ParseImageView(context);
+    imageView.setLayoutParams(new ViewGroup.LayoutParams(51, 51));
+    imageView.setParseFile(file);
+    ParseTaskUtils.wait(imageView.loadBitmapInBackground());
+    for (int i = 0; i < 50 && diskCache.size() == 0; i++) {
+      Thread.sleep(20);
+    }
+    long size = diskCache.size();
+    assertTrue(size > 0);
+
+    // A view one pixel smaller is filled from the same copy rather than storing its own
+    ParseImageView smallerImageView = new ParseImageView(context);
+    smallerImageView.setLayoutParams(new ViewGroup.LayoutParams(50, 50));
+    smallerImageView.setParseFile(file);
+    Bitmap loaded = ParseTaskUtils.wait(smallerImageView.loadBitmapInBackground());
+
+    assertEquals(50, loaded.getWidth());
+    assertEquals(50, loaded.getHeight());
+    verify(file, times(1)).getDataStreamInBackground();
+    assertEquals(size, diskCache.size());
+    diskCache.clear();
+  }
+
+  public void testCancelledLoadStopsReadingStream() throws Exception {
+    Bitmap bitmap = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+    final byte[] imageData = stream.toByteArray();
+    final Semaphore readStarted = new Semaphore(0);
+    final Semaphore cancelled = new Semaphore(0);
+    final int[] bytesRead = new int[1];
+    // Trickles the image out, blocking on the first read until the load has been cancelled.
+    InputStream slowStream = new ByteArrayInputStream(imageData) {
+      @Override
+      public synchronized int read(byte[] buffer, int offset, int count) {
+        if (bytesRead[0] == 0) {
+          readStarted.release();
+          cancelled.acquireUninterruptibly();
+        }
+        int read = super.read(buffer, offset, Math.min(count, 16));
+        bytesRead[0] += Math.max(read, 0);
+        return read;
+      }
+    };
+
+    ParseFile file = mock(ParseFile.class);
+    when(file.getUrl()).thenReturn("http://parse.com/cancelled.png");
+    when(file.getDataStreamInBackground()).thenReturn(Task.forResult(slowStream));
+    ParseImageCache.getInstance().evictAll();
+
+    ParseImageView imageView = new ParseImageView(getInstrumentation().getTargetContext());
+    imageView.setParseFile(file);
+    Task<Bitmap> task = imageView.loadBitmapInBackground();
+    readStarted.acquire();
+    imageView.setParseFile(null);
+    cancelled.release();
+    task.waitForCompletion();
+
+    assertTrue(task.isCancelled());
+    assertTrue(bytesRead[0] < imageData.length);
+  }
+
+  /**
+   * Exposes {@link ParseImageView#onDetachedFromWindow()}, as if its Activity were destroyed.
+   */
+  private static class DetachableImageView extends ParseImageView {
+    private DetachableImageView(Context context) {
+      super(context);
+    }
+
+    private void detach() {
+      onDetachedFromWindow();
+    }
+  }
+
+  public void testDetachedViewLetsGoOfItsLoad() throws Exception {
+    Bitmap bitmap = Bitmap.createBitmap(20, 20, Bitmap.Config.ARGB_8888);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+
+    TaskCompletionSource<InputStream> tcs = new TaskCompletionSource<>();
+    ParseFile file = mock(ParseFile.class);
+    String url = "http://parse.com/detached.png";
+    when(file.getUrl()).thenReturn(url);
+    when(file.getDataStreamInBackground()).thenReturn(tcs.getTask());
+    ParseImageCache.getInstance().evictAll();
+
+    DetachableImageView imageView = new DetachableImageView(getInstrumentation().getTargetContext());
+    imageView.setParseFile(file);
+    Task<Bitmap> task = imageView.loadBitmapInBackground();
+    imageView.detach();
+    task.waitForCompletion();
+
+    // The view is no longer waiting on the image, but it's still loaded into the cache.
+    assertTrue(task.isCancelled());
+    tcs.setResult(new ByteArrayInputStream(stream.toByteArray()));
+    for (int i = 0; i < 50 && ParseImageCache.getInstance().get(url, 0, 0) == null; i++) {
+      Thread.sleep(20);
+    }
+    assertNotNull(ParseImageCache.getInstance().get(url, 0, 0));
+    verify(file, never()).cancel();
+  }
+}
@@ -22,15 +22,20 @@
 package com.parse;
 
 import android.app.Activity;
+import android.content.Context;
 import android.database.DataSetObserver;
+import android.os.Looper;
 import android.test.ActivityInstrumentationTestCase2;
+import android.util.AttributeSet;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 
 import com.parse.ParseQuery.CachePolicy;
 import com.parse.ui.widget.ParseImageView;
+import com.parse.ui.widget.ParseQueryAdapter;
 import com.parse.ui.widget.ParseQueryAdapter.OnQueryLoadListener;
 import com.parse.ui.widget.ParseQueryAdapter.QueryFactory;
 
@@ -39,9 +44,15 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bolts.Capture;
 import bolts.Task;
@@ -67,6 +78,8 @@ public class ParseQueryAdapterTest extends ActivityInstrumentationTestCase2<Test
   private ListView listView;
   private List<ParseObject> savedThings;
   private int totalThings;
+  private List<ParseQuery.State> queryStates;
+  private AtomicInteger personQueryCount;
 
   @Override
   public void setUp() throws Exception {
@@ -75,6 +88,8 @@ public class ParseQueryAdapterTest extends ActivityInstrumentationTestCase2<Test
     listView = new ListView(getActivity());
     savedThings = new ArrayList<>();
     totalThings = 10;
+    queryStates = Collections.synchronizedList(new ArrayList<ParseQuery.State>());
+    personQueryCount = new AtomicInteger();
 
     // Register a mock cachedQueryController, the controller maintain a cache list and return
     // results based on query state's CachePolicy
@@ -85,6 +100,10 @@ public class ParseQueryAdapterTest extends ActivityInstrumentationTestCase2<Test
       @Override
       public Task<List<ParseObject>> answer(InvocationOnMock invocation) throws Throwable {
         ParseQuery.State state = (ParseQuery.State) invocation.getArguments()[0];
+        queryStates.add(state);
+        if ("Person".equals(state.className())) {
+          return Task.forResult(findPeople(state));
+        }
         int start = state.skip();
         // The default value of limit in ParseQuery is -1.
         int end = state.limit() > 0 ?
@@ -138,11 +157,25 @@ public class ParseQueryAdapterTest extends ActivityInstrumentationTestCase2<Test
   public void tearDown() throws Exception {
     listView = null;
     savedThings = null;
+    queryStates = null;
     ParseCorePlugins.getInstance().reset();
     ParseObject.unregisterSubclass("Thing");
     super.tearDown();
   }
 
+  private List<ParseObject> findPeople(ParseQuery.State state) {
+    personQueryCount.incrementAndGet();
+    List<ParseObject> people = new ArrayList<>();
+    Map<?, ?> objectIdConstraint = (Map<?, ?>) state.constraints().get("objectId");
+    for (Object objectId : new HashSet<>((Collection<?>) objectIdConstraint.get("$in"))) {
+      ParseObject person = ParseObject.create("Person");
+      person.setObjectId((String) objectId);
+      person.put("name", "Person " + objectId);
+      people.add(person);
+    }
+    return people;
+  }
+
   public void testLoadObjects() throws Exception {
     final ParseQueryAdapter<Thing> adapter = new ParseQueryAdapter<>(getActivity(), Thing.class);
     final Semaphore done = new Semaphore(0);
@@ -223,6 +256,170 @@ public class ParseQueryAdapterTest extends ActivityInstrumentationTestCase2<Test
     assertEquals(savedThings.get(0).getObjectId(), textView.getText());
   }
 
+  private static class MessageViewHolder extends ParseQueryAdapter.ViewHolder {
+    private final TextView messageView;
+
+    private MessageViewHolder(View itemView) {
+      super(itemView);
+      messageView = (TextView) itemView.findViewById(android.R.id.message);
+    }
+  }
+
+  public void testGetItemViewLooksUpViewsOnce() {
+    final Capture<Integer> holdersCreated = new Capture<>(0);
+    ParseQueryAdapter<ParseObject> adapter =
+        new ParseQueryAdapter<ParseObject>(getActivity(), Thing.class, R.layout.view_item) {
+          @Override
+          protected ViewHolder onCreateViewHolder(View v) {
+            holdersCreated.set(holdersCreated.get() + 1);
+            return new MessageViewHolder(v);
+          }
+
+          @Override
+          public View getItemView(ParseObject object, View v, ViewGroup parent) {
+            v = super.getItemView(object, v, parent);
+            MessageViewHolder holder = (MessageViewHolder) getViewHolder(v);
+            holder.messageView.setText(object.getString("name"));
+            return v;
+          }
+        };
+    adapter.setTextKey("name");
+
+    View view = adapter.getItemView(savedThings.get(0), null, listView);
+    View recycled = adapter.getItemView(savedThings.get(1), view, listView);
+
+    assertSame(view, recycled);
+    assertEquals(1, (int) holdersCreated.get());
+    TextView textView = (TextView) view.findViewById(android.R.id.text1);
+    assertEquals("Thing 1", textView.getText());
+    TextView messageView = (TextView) view.findViewById(android.R.id.message);
+    assertEquals("Thing 1", messageView.getText());
+  }
+
+  /**
+   * The root of {@code view_counted_item}, which counts how often it has been inflated.
+   */
+  public static class CountedView extends LinearLayout {
+    private static final AtomicInteger inflatedCount = new AtomicInteger();
+
+    private final boolean isInflatedOnUiThread;
+
+    public CountedView(Context context, AttributeSet attrs) {
+      super(context, attrs);
+      inflatedCount.incrementAndGet();
+      isInflatedOnUiThread = Looper.myLooper() == Looper.getMainLooper();
+    }
+  }
+
+  private static void assertInflatedCount(int count) throws InterruptedException {
+    for (int i = 0; i < 100 && CountedView.inflatedCount.get() < count; i++) {
+      Thread.sleep(100);
+    }
+    // Give any extra inflations the chance to show up
+    Thread.sleep(500);
+    assertEquals(count, CountedView.inflatedCount.get());
+  }
+
+  public void testGetItemViewUsesPreinflatedViews() throws Exception {
+    // More than AsyncLayoutInflater can queue at once
+    final int preinflatedViewCount = 15;
+    final ParseQueryAdapter<ParseObject> adapter =
+        new ParseQueryAdapter<>(getActivity(), Thing.class, R.layout.view_counted_item);
+    adapter.setPreinflatedViewCount(preinflatedViewCount);
+    CountedView.inflatedCount.set(0);
+
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        adapter.loadObjects();
+      }
+    });
+    assertInflatedCount(preinflatedViewCount);
+
+    final Capture<View> view = new Capture<>();
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        view.set(adapter.getItemView(savedThings.get(0), null, listView));
+      }
+    });
+
+    assertFalse(((CountedView) view.get()).isInflatedOnUiThread);
+    // The view that was used is replaced, without inflating more than the count
+    assertInflatedCount(preinflatedViewCount + 1);
+  }
+
+  public void testPointerFetchesAreBatched() throws Exception {
+    for (int i = 0; i < totalThings; i++) {
+      savedThings.get(i).put("author", ParseObject.createWithoutData("Person", "p" + i % 3));
+    }
+    final List<Task<ParseObject>> fetches = new ArrayList<>();
+    final ParseQueryAdapter<ParseObject> adapter =
+        new ParseQueryAdapter<ParseObject>(getActivity(), Thing.class) {
+          @Override
+          public View getItemView(ParseObject object, View v, ViewGroup parent) {
+            fetches.add(this.<ParseObject>fetchPointerInBackground(object, "author"));
+            return super.getItemView(object, v, parent);
+          }
+        };
+    adapter.setIncludeDiagnosticsEnabled(true);
+
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        for (ParseObject thing : savedThings) {
+          adapter.getItemView(thing, null, listView);
+        }
+      }
+    });
+    for (Task<ParseObject> fetch : fetches) {
+      assertTrue(ParseTaskUtils.wait(fetch).isDataAvailable());
+    }
+
+    // One query for every row of the bind pass
+    assertEquals(1, personQueryCount.get());
+    assertEquals("Person p1", savedThings.get(4).getParseObject("author").getString("name"));
+    assertEquals(Collections.singletonList("author"), adapter.getSuggestedIncludeKeys());
+  }
+
+  public void testRebindingRowsCountsEachPointerFetchOnce() throws Exception {
+    final ParseObject thing = savedThings.get(0);
+    final ParseObject other = savedThings.get(1);
+    thing.put("author", ParseObject.createWithoutData("Person", "a0"));
+    other.put("author", ParseObject.createWithoutData("Person", "a1"));
+    thing.put("editor", ParseObject.createWithoutData("Person", "e0"));
+    final List<Task<ParseObject>> fetches = new ArrayList<>();
+    final ParseQueryAdapter<ParseObject> adapter =
+        new ParseQueryAdapter<ParseObject>(getActivity(), Thing.class) {
+          @Override
+          public View getItemView(ParseObject object, View v, ViewGroup parent) {
+            fetches.add(this.<ParseObject>fetchPointerInBackground(object, "author"));
+            if (object.has("editor")) {
+              fetches.add(this.<ParseObject>fetchPointerInBackground(object, "editor"));
+            }
+            return super.getItemView(object, v, parent);
+          }
+        };
+    adapter.setIncludeDiagnosticsEnabled(true);
+
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        // The first row is rebound while its pointers are being fetched
+        for (int i = 0; i < 5; i++) {
+          adapter.getItemView(thing, null, listView);
+        }
+        adapter.getItemView(other, null, listView);
+      }
+    });
+    for (Task<ParseObject> fetch : fetches) {
+      ParseTaskUtils.wait(fetch);
+    }
+
+    // Two authors were fetched, but only one editor
+    assertEquals(Arrays.asList("author", "editor"), adapter.getSuggestedIncludeKeys());
+  }
+
   public void testLoadObjectsWithLimitsObjectsPerPage() throws Exception {
     final ParseQueryAdapter<Thing> adapter = new ParseQueryAdapter<>(getActivity(), Thing.class);
     final int pageSize = 4;
@@ -607,6 +804,50 @@ public class ParseQueryAdapterTest extends ActivityInstrumentationTestCase2<Test
     assertTrue(done.tryAcquire(10, TimeUnit.SECONDS));
   }
 
+  public void testFieldProjectionSelectsBoundKeys() throws Exception {
+    final ParseQueryAdapter<Thing> adapter = new ParseQueryAdapter<>(getActivity(), Thing.class);
+    adapter.setTextKey("name");
+    adapter.setFieldProjectionEnabled(true);
+    final Semaphore done = new Semaphore(0);
+    adapter.addOnQueryLoadListener(new OnQueryLoadListener<Thing>() {
+      @Override
+      public void onLoading() {
+      }
+
+      @Override
+      public void onLoaded(List<Thing> objects, Exception e) {
+        assertNull(e);
+        done.release();
+      }
+    });
+
+    adapter.loadObjects();
+
+    assertTrue(done.tryAcquire(10, TimeUnit.SECONDS));
+    assertEquals(new HashSet<>(Arrays.asList("name")), queryStates.get(0).selectedKeys());
+  }
+
+  public void testFieldProjectionIsDisabledByDefault() throws Exception {
+    final ParseQueryAdapter<Thing> adapter = new ParseQueryAdapter<>(getActivity(), Thing.class);
+    adapter.setTextKey("name");
+    final Semaphore done = new Semaphore(0);
+    adapter.addOnQueryLoadListener(new OnQueryLoadListener<Thing>() {
+      @Override
+      public void onLoading() {
+      }
+
+      @Override
+      public void onLoaded(List<Thing> objects, Exception e) {
+        done.release();
+      }
+    });
+
+    adapter.loadObjects();
+
+    assertTrue(done.tryAcquire(10, TimeUnit.SECONDS));
+    assertNull(queryStates.get(0).selectedKeys());
+  }
+
   public void testLoadObjectsWithtAutoload() throws Exception {
     final ParseQueryAdapter<Thing> adapter = new ParseQueryAdapter<>(getActivity(), Thing.class);
     final Capture<Boolean> flag = new Capture<>(false);
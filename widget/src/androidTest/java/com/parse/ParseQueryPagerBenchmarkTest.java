@@ -0,0 +1,269 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.parse.ui.widget.ParseQueryKeysetPager;
+import com.parse.ui.widget.ParseQueryPager;
+
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import bolts.Task;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the per-page latency of skip based paging with keyset paging as the pager goes deeper,
+ * and the memory held by unbounded and windowed pagers.
+ *
+ * The mock server walks every row it skips, like a real database does, at a fixed cost per row.
+ */
+public class ParseQueryPagerBenchmarkTest extends InstrumentationTestCase {
+
+  private static final String TAG = "ParseQueryPagerBenchmark";
+  private static final int ROW_COUNT = 2000;
+  private static final int PAGE_SIZE = 25;
+  private static final int PAGE_COUNT = 60;
+  private static final int SAMPLE_PAGES = 5;
+  private static final int PAYLOAD_ROW_COUNT = 10000;
+  private static final int PAYLOAD_CHARS = 1024;
+  private static final int WINDOW_PAGES = 4;
+  // Simulated server cost of examining a row
+  private static final int ROWS_PER_MILLISECOND = 50;
+
+  private List<ParseObject> rows;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    rows = new ArrayList<>();
+    for (int i = 0; i < ROW_COUNT; i++) {
+      ParseObject row = ParseObject.create("Row");
+      // Several rows share each rank, so pages have to be split between ties.
+      row.put("rank", i / 3);
+      row.setObjectId(String.format(Locale.US, "%05d", i));
+      rows.add(row);
+    }
+
+    ParseQueryController queryController = mock(ParseQueryController.class);
+    when(queryController.findAsync(
+        any(ParseQuery.State.class), any(ParseUser.class), Matchers.<Task<Void>>any()))
+        .thenAnswer(new Answer<Task<List<ParseObject>>>() {
+          @Override
+          public Task<List<ParseObject>> answer(InvocationOnMock invocation) throws Throwable {
+            ParseQuery.State state = (ParseQuery.State) invocation.getArguments()[0];
+            if ("Payload".equals(state.className())) {
+              return Task.forResult(findPayloads(state));
+            }
+            return Task.forResult(find(state));
+          }
+        });
+    ParseCorePlugins.getInstance().registerQueryController(queryController);
+
+    ParseCurrentUserController currentUserController = mock(ParseCurrentUserController.class);
+    when(currentUserController.getAsync()).thenReturn(Task.forResult(mock(ParseUser.class)));
+    when(currentUserController.getCurrentSessionTokenAsync())
+        .thenReturn(Task.<String>forResult(null));
+    ParseCorePlugins.getInstance().registerCurrentUserController(currentUserController);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    ParseCorePlugins.getInstance().reset();
+    rows = null;
+    super.tearDown();
+  }
+
+  /**
+   * Finds rows ordered by rank and objectId, as if rank were indexed.
+   */
+  private List<ParseObject> find(ParseQuery.State state) {
+    int start = 0;
+    int examined = 0;
+    Object rankConstraint = state.constraints().get("rank");
+    if (rankConstraint instanceof Map) {
+      int minRank = (Integer) ((Map) rankConstraint).get("$gte");
+      // An index seek, so it only examines the rows it looks at
+      int low = 0;
+      int high = rows.size();
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        examined++;
+        if (rows.get(mid).getInt("rank") < minRank) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      start = low;
+    }
+    // Skipped rows still have to be walked
+    start += state.skip() > 0 ? state.skip() : 0;
+    examined += state.skip() > 0 ? state.skip() : 0;
+    int end = state.limit() > 0 ? Math.min(start + state.limit(), rows.size()) : rows.size();
+    examined += end - start;
+
+    SystemClock.sleep(examined / ROWS_PER_MILLISECOND);
+    return new ArrayList<>(rows.subList(Math.min(start, end), end));
+  }
+
+  /**
+   * Creates new rows with a sizable payload for every query, like a server would.
+   */
+  private static List<ParseObject> findPayloads(ParseQuery.State state) {
+    List<ParseObject> results = new ArrayList<>();
+    Object objectIdConstraint = state.constraints().get("objectId");
+    if (objectIdConstraint instanceof Map) {
+      for (Object objectId : (Collection<?>) ((Map<?, ?>) objectIdConstraint).get("$in")) {
+        results.add(createPayload(Integer.parseInt((String) objectId)));
+      }
+      return results;
+    }
+    int start = Math.max(state.skip(), 0);
+    int end = Math.min(start + state.limit(), PAYLOAD_ROW_COUNT);
+    for (int i = start; i < end; i++) {
+      results.add(createPayload(i));
+    }
+    return results;
+  }
+
+  private static ParseObject createPayload(int i) {
+    ParseObject row = ParseObject.create("Payload");
+    row.setObjectId(String.valueOf(i));
+    char[] description = new char[PAYLOAD_CHARS];
+    Arrays.fill(description, (char) ('a' + i % 26));
+    row.put("description", new String(description));
+    return row;
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      System.runFinalization();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * @return the memory retained by {@code pager} after scrolling through every payload row.
+   */
+  private long scrollThroughPayloads(ParseQueryPager<ParseObject> pager) throws ParseException {
+    long before = usedMemory();
+    while (pager.hasNextPage()) {
+      pager.prefetchIfNeeded(pager.getObjects().size());
+      ParseTaskUtils.wait(pager.loadNextPage());
+    }
+    long retained = usedMemory() - before;
+    assertEquals(PAYLOAD_ROW_COUNT, pager.getObjects().size());
+    return retained;
+  }
+
+  private long[] loadPages(ParseQueryPager<ParseObject> pager) throws ParseException {
+    long[] nanos = new long[PAGE_COUNT];
+    for (int page = 0; page < PAGE_COUNT && pager.hasNextPage(); page++) {
+      long start = SystemClock.elapsedRealtimeNanos();
+      ParseTaskUtils.wait(pager.loadNextPage());
+      nanos[page] = SystemClock.elapsedRealtimeNanos() - start;
+    }
+    return nanos;
+  }
+
+  private static double averageMillis(long[] nanos, int from, int to) {
+    long total = 0;
+    for (int i = from; i < to; i++) {
+      total += nanos[i];
+    }
+    return total / 1e6 / (to - from);
+  }
+
+  public void testKeysetPagerLoadsEveryRowOnce() throws Exception {
+    ParseQueryPager<ParseObject> pager = new ParseQueryKeysetPager<>(
+        ParseQuery.getQuery("Row"), PAGE_SIZE, "rank", true);
+    loadPages(pager);
+
+    List<ParseObject> objects = pager.getObjects();
+    assertEquals(PAGE_COUNT * PAGE_SIZE, objects.size());
+    Set<String> objectIds = new HashSet<>();
+    for (int i = 0; i < objects.size(); i++) {
+      assertSame(rows.get(i), objects.get(i));
+      assertTrue(objectIds.add(objects.get(i).getObjectId()));
+    }
+  }
+
+  public void testKeysetPageLatencyIsConstantWithDepth() throws Exception {
+    long[] skipNanos = loadPages(
+        new ParseQueryPager<>(ParseQuery.getQuery("Row"), PAGE_SIZE));
+    long[] keysetNanos = loadPages(new ParseQueryKeysetPager<>(
+        ParseQuery.getQuery("Row"), PAGE_SIZE, "rank", true));
+
+    double skipFirst = averageMillis(skipNanos, 0, SAMPLE_PAGES);
+    double skipLast = averageMillis(skipNanos, PAGE_COUNT - SAMPLE_PAGES, PAGE_COUNT);
+    double keysetFirst = averageMillis(keysetNanos, 0, SAMPLE_PAGES);
+    double keysetLast = averageMillis(keysetNanos, PAGE_COUNT - SAMPLE_PAGES, PAGE_COUNT);
+    Log.i(TAG, String.format(Locale.US,
+        "Per page, first %d -> last %d pages: skip %.2fms -> %.2fms, keyset %.2fms -> %.2fms",
+        SAMPLE_PAGES, SAMPLE_PAGES, skipFirst, skipLast, keysetFirst, keysetLast));
+
+    assertTrue(keysetLast < skipLast);
+    // Allow for scheduling noise, but deep keyset pages shouldn't cost more than shallow ones.
+    assertTrue(keysetLast < keysetFirst + 5);
+  }
+
+  public void testWindowedPagerMemoryIsBounded() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Payload"), PAGE_SIZE);
+    long unboundedBytes = scrollThroughPayloads(pager);
+    pager = null;
+
+    ParseQueryPager<ParseObject> windowedPager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Payload"), PAGE_SIZE);
+    windowedPager.setMaxLoadedPages(WINDOW_PAGES);
+    long windowedBytes = scrollThroughPayloads(windowedPager);
+
+    Log.i(TAG, String.format(Locale.US,
+        "Retained after %d rows: unbounded %dKB, %d page window %dKB",
+        PAYLOAD_ROW_COUNT, unboundedBytes / 1024, WINDOW_PAGES, windowedBytes / 1024));
+
+    // Evicted rows are still held as stubs, so memory isn't flat, but the payloads are gone.
+    assertTrue(windowedBytes < unboundedBytes / 2);
+    assertFalse(windowedPager.isLoaded(0));
+    assertTrue(windowedPager.isLoaded(PAYLOAD_ROW_COUNT - 1));
+  }
+}
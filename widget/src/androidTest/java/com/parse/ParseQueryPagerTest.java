@@ -0,0 +1,628 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse;
+
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+
+import com.parse.ui.widget.ParseQueryPager;
+
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import bolts.CancellationTokenSource;
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ParseQueryPagerTest extends InstrumentationTestCase {
+
+  private static final int PAGE_SIZE = 5;
+
+  /**
+   * Records the notifications of a pager as strings.
+   */
+  private static class RecordingCallback implements ParseQueryPager.OnObjectsChangedCallback {
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final Semaphore semaphore = new Semaphore(0);
+
+    @Override
+    public void onChanged(ParseQueryPager sender) {
+      record("changed");
+    }
+
+    @Override
+    public void onItemRangeChanged(ParseQueryPager sender, int positionStart, int itemCount) {
+      record("changed " + positionStart + " " + itemCount);
+    }
+
+    @Override
+    public void onItemRangeInserted(ParseQueryPager sender, int positionStart, int itemCount) {
+      record("inserted " + positionStart + " " + itemCount);
+    }
+
+    @Override
+    public void onItemRangeMoved(
+        ParseQueryPager sender, int fromPosition, int toPosition, int itemCount) {
+      record("moved " + fromPosition + " " + toPosition);
+    }
+
+    @Override
+    public void onItemRangeRemoved(ParseQueryPager sender, int positionStart, int itemCount) {
+      record("removed " + positionStart + " " + itemCount);
+    }
+
+    private void record(String event) {
+      events.add(event);
+      semaphore.release();
+    }
+
+    /**
+     * Waits until {@code event} has been recorded.
+     */
+    private void await(String event) throws InterruptedException {
+      while (!events.contains(event)) {
+        assertTrue(events.toString(), semaphore.tryAcquire(10, TimeUnit.SECONDS));
+      }
+    }
+  }
+
+  private List<ParseObject> things;
+  // The results of queries from the local datastore
+  private List<ParseObject> pinnedThings;
+  private AtomicInteger findCount;
+  private List<Task<Void>> requestCancellationTokens;
+  // Whether reloads of evicted pages are slow like the queries of Slow
+  private volatile boolean slowReloads;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    things = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      ParseObject thing = ParseObject.create("Thing");
+      thing.setObjectId(String.valueOf(i));
+      things.add(thing);
+    }
+    pinnedThings = new ArrayList<>();
+    findCount = new AtomicInteger();
+    requestCancellationTokens = Collections.synchronizedList(new ArrayList<Task<Void>>());
+
+    ParseQueryController queryController = mock(ParseQueryController.class);
+    when(queryController.findAsync(
+        any(ParseQuery.State.class), any(ParseUser.class), Matchers.<Task<Void>>any()))
+        .thenAnswer(new Answer<Task<List<ParseObject>>>() {
+          @Override
+          public Task<List<ParseObject>> answer(InvocationOnMock invocation) throws Throwable {
+            findCount.incrementAndGet();
+            ParseQuery.State state = (ParseQuery.State) invocation.getArguments()[0];
+            Object objectIdConstraint = state.constraints().get("objectId");
+            if ("Slow".equals(state.className())
+                || (slowReloads && objectIdConstraint instanceof Map)) {
+              // Only completes when the request is cancelled, like a real one would
+              @SuppressWarnings("unchecked")
+              Task<Void> cancellationToken = (Task<Void>) invocation.getArguments()[2];
+              requestCancellationTokens.add(cancellationToken);
+              return cancellationToken.continueWithTask(
+                  new Continuation<Void, Task<List<ParseObject>>>() {
+                    @Override
+                    public Task<List<ParseObject>> then(Task<Void> task) throws Exception {
+                      return Task.cancelled();
+                    }
+                  });
+            }
+            if (state.isFromLocalDatastore()) {
+              return Task.<List<ParseObject>>forResult(new ArrayList<>(pinnedThings));
+            }
+            if (objectIdConstraint instanceof Map) {
+              Collection<?> objectIds =
+                  (Collection<?>) ((Map<?, ?>) objectIdConstraint).get("$in");
+              List<ParseObject> results = new ArrayList<>();
+              for (ParseObject thing : things) {
+                if (objectIds.contains(thing.getObjectId())) {
+                  results.add(thing);
+                }
+              }
+              return Task.forResult(results);
+            }
+            int start = Math.min(state.skip(), things.size());
+            int end = state.limit() > 0
+                ? Math.min(start + state.limit(), things.size())
+                : things.size();
+            return Task.<List<ParseObject>>forResult(new ArrayList<>(things.subList(start, end)));
+          }
+        });
+    when(queryController.countAsync(
+        any(ParseQuery.State.class), any(ParseUser.class), Matchers.<Task<Void>>any()))
+        .thenAnswer(new Answer<Task<Integer>>() {
+          @Override
+          public Task<Integer> answer(InvocationOnMock invocation) throws Throwable {
+            return Task.forResult(things.size());
+          }
+        });
+    ParseCorePlugins.getInstance().registerQueryController(queryController);
+
+    ParseCurrentUserController currentUserController = mock(ParseCurrentUserController.class);
+    when(currentUserController.getAsync()).thenReturn(Task.forResult(mock(ParseUser.class)));
+    when(currentUserController.getCurrentSessionTokenAsync())
+        .thenReturn(Task.<String>forResult(null));
+    ParseCorePlugins.getInstance().registerCurrentUserController(currentUserController);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    ParseCorePlugins.getInstance().reset();
+    Parse.disableLocalDatastore();
+    things = null;
+    pinnedThings = null;
+    super.tearDown();
+  }
+
+  public void testPrefetchIsUsedByLoadNextPage() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    pager.setPrefetchDistance(2);
+    ParseTaskUtils.wait(pager.loadNextPage());
+    assertEquals(1, findCount.get());
+
+    pager.prefetchIfNeeded(3);
+    // Already prefetching
+    pager.prefetchIfNeeded(4);
+    // Prefetched pages aren't published until they're asked for
+    assertEquals(PAGE_SIZE, pager.getObjects().size());
+
+    ParseTaskUtils.wait(pager.loadNextPage());
+    assertEquals(2, findCount.get());
+    assertEquals(2 * PAGE_SIZE, pager.getObjects().size());
+    assertSame(things.get(PAGE_SIZE), pager.getObjects().get(PAGE_SIZE));
+  }
+
+  public void testPrefetchedPageIsPublishedAutomatically() throws Exception {
+    final ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    pager.setPrefetchDistance(2);
+    pager.setPublishPrefetchedPages(true);
+    ParseTaskUtils.wait(pager.loadNextPage());
+
+    RecordingCallback callback = new RecordingCallback();
+    pager.addOnObjectsChangedCallback(callback);
+    pager.prefetchIfNeeded(PAGE_SIZE - 1);
+
+    callback.await("inserted " + PAGE_SIZE + " " + PAGE_SIZE);
+    assertEquals(2, findCount.get());
+    assertEquals(2 * PAGE_SIZE, pager.getObjects().size());
+  }
+
+  public void testEvictedPagesAreReloadedWhenRead() throws Exception {
+    final ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    pager.setMaxLoadedPages(2);
+    for (int i = 0; i < 3; i++) {
+      pager.prefetchIfNeeded(pager.getObjects().size());
+      ParseTaskUtils.wait(pager.loadNextPage());
+    }
+
+    // The first page is the farthest from where we've read
+    assertEquals(3 * PAGE_SIZE, pager.getObjects().size());
+    assertFalse(pager.isLoaded(0));
+    assertFalse(pager.getObjects().get(0).isDataAvailable());
+    assertEquals(things.get(0).getObjectId(), pager.getObjects().get(0).getObjectId());
+    assertTrue(pager.isLoaded(PAGE_SIZE));
+    assertTrue(pager.isLoaded(2 * PAGE_SIZE));
+
+    RecordingCallback callback = new RecordingCallback();
+    pager.addOnObjectsChangedCallback(callback);
+    pager.prefetchIfNeeded(0);
+
+    // Reloading the first page evicts the middle one
+    callback.await("changed " + PAGE_SIZE + " " + PAGE_SIZE);
+    assertTrue(pager.isLoaded(0));
+    assertSame(things.get(0), pager.getObjects().get(0));
+    // The middle page is now the farthest from where we're reading, the last page is kept.
+    assertFalse(pager.isLoaded(PAGE_SIZE));
+    assertTrue(pager.isLoaded(2 * PAGE_SIZE));
+    assertEquals("changed 0 " + PAGE_SIZE, callback.events.get(0));
+  }
+
+  public void testCancellationCancelsReloadOfEvictedPage() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    pager.setMaxLoadedPages(2);
+    CancellationTokenSource cts = new CancellationTokenSource();
+    for (int i = 0; i < 3; i++) {
+      pager.prefetchIfNeeded(pager.getObjects().size());
+      ParseTaskUtils.wait(pager.loadNextPage(cts.getToken()));
+    }
+    assertFalse(pager.isLoaded(0));
+
+    slowReloads = true;
+    pager.prefetchIfNeeded(0);
+    for (int i = 0; i < 50 && requestCancellationTokens.isEmpty(); i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(1, requestCancellationTokens.size());
+    // As when the adapter is cleared or loads its objects again
+    cts.cancel();
+    requestCancellationTokens.get(0).waitForCompletion(10, TimeUnit.SECONDS);
+
+    assertTrue(requestCancellationTokens.get(0).isCancelled());
+    assertFalse(pager.isLoaded(0));
+  }
+
+  public void testRefreshOnlyReportsChangedRanges() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    ParseTaskUtils.wait(pager.loadNextPage());
+    ParseTaskUtils.wait(pager.loadNextPage());
+
+    ParseObject inserted = ParseObject.create("Thing");
+    inserted.setObjectId("new");
+    things.add(0, inserted);
+    ParseObject removed = things.remove(4);
+
+    RecordingCallback callback = new RecordingCallback();
+    pager.addOnObjectsChangedCallback(callback);
+    ParseTaskUtils.wait(pager.refresh(null));
+
+    // Both pages are refreshed with one query
+    assertEquals(3, findCount.get());
+    assertEquals(things.subList(0, 2 * PAGE_SIZE), pager.getObjects());
+    assertFalse(pager.getObjects().contains(removed));
+    assertEquals(1, pager.getCurrentPage());
+    assertTrue(pager.hasNextPage());
+    assertEquals(2, callback.events.size());
+    assertTrue(callback.events.contains("inserted 0 1"));
+    assertTrue(callback.events.contains("removed 3 1"));
+  }
+
+  public void testItemIdsAreStableAcrossRefresh() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    ParseTaskUtils.wait(pager.loadNextPage());
+    Set<Long> ids = new HashSet<>();
+    for (int i = 0; i < PAGE_SIZE; i++) {
+      long id = pager.getItemId(i);
+      assertTrue(id >= 0);
+      assertTrue(ids.add(id));
+    }
+    long firstId = pager.getItemId(0);
+
+    ParseObject inserted = ParseObject.create("Thing");
+    inserted.setObjectId("new");
+    things.add(0, inserted);
+    ParseTaskUtils.wait(pager.refresh(null));
+
+    assertSame(things.get(1), pager.getObjects().get(1));
+    assertEquals(firstId, pager.getItemId(1));
+    assertFalse(ids.contains(pager.getItemId(0)));
+    // Ids come from the objectId, not the instance
+    ParseObject copy = ParseObject.createWithoutData("Thing", things.get(1).getObjectId());
+    assertEquals(firstId, pager.getItemId(copy));
+  }
+
+  public void testLoadPagesInsertsPagesTogether() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    RecordingCallback callback = new RecordingCallback();
+    pager.addOnObjectsChangedCallback(callback);
+
+    List<ParseObject> loaded = ParseTaskUtils.wait(pager.loadPages(3, 2, null));
+    assertEquals(3, findCount.get());
+    assertEquals(things.subList(0, 3 * PAGE_SIZE), loaded);
+    assertEquals(things.subList(0, 3 * PAGE_SIZE), pager.getObjects());
+    assertEquals(2, pager.getCurrentPage());
+    assertTrue(pager.hasNextPage());
+    assertEquals(Collections.singletonList("inserted 0 " + 3 * PAGE_SIZE), callback.events);
+
+    // Only one more page has results
+    loaded = ParseTaskUtils.wait(pager.loadPages(4, 4, null));
+    assertEquals(things.subList(3 * PAGE_SIZE, 4 * PAGE_SIZE), loaded);
+    assertEquals(things, pager.getObjects());
+    assertEquals(3, pager.getCurrentPage());
+    assertFalse(pager.hasNextPage());
+  }
+
+  public void testRestoreStateRendersSavedPagesAndStubs() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    ParseTaskUtils.wait(pager.loadPages(3, 3, null));
+    pager.prefetchIfNeeded(2);
+    Bundle state = new Bundle();
+    pager.saveState(state);
+
+    ParseQueryPager<ParseObject> restored =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    assertTrue(restored.restoreState(state));
+
+    assertEquals(3 * PAGE_SIZE, restored.getObjects().size());
+    assertEquals(2, restored.getCurrentPage());
+    assertTrue(restored.hasNextPage());
+    assertEquals(2, restored.getAnchorPosition());
+    // The pages around the anchor and the last page are saved with their data
+    assertTrue(restored.isLoaded(0));
+    assertTrue(restored.isLoaded(PAGE_SIZE));
+    assertTrue(restored.isLoaded(2 * PAGE_SIZE));
+    assertEquals("Thing", restored.getObjects().get(0).getClassName());
+    for (int i = 0; i < 3 * PAGE_SIZE; i++) {
+      assertEquals(things.get(i).getObjectId(), restored.getObjects().get(i).getObjectId());
+    }
+    // Restoring doesn't query
+    assertEquals(3, findCount.get());
+
+    ParseTaskUtils.wait(restored.loadNextPage());
+    assertEquals(4 * PAGE_SIZE, restored.getObjects().size());
+    assertSame(things.get(3 * PAGE_SIZE), restored.getObjects().get(3 * PAGE_SIZE));
+  }
+
+  public void testRestoredPagesFarFromAnchorAreStubs() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    ParseTaskUtils.wait(pager.loadPages(4, 4, null));
+    pager.prefetchIfNeeded(0);
+    Bundle state = new Bundle();
+    pager.saveState(state);
+
+    ParseQueryPager<ParseObject> restored =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    assertTrue(restored.restoreState(state));
+
+    assertTrue(restored.isLoaded(0));
+    assertTrue(restored.isLoaded(PAGE_SIZE));
+    assertFalse(restored.isLoaded(2 * PAGE_SIZE));
+    assertFalse(restored.getObjects().get(2 * PAGE_SIZE).isDataAvailable());
+    assertEquals(things.get(2 * PAGE_SIZE).getObjectId(),
+        restored.getObjects().get(2 * PAGE_SIZE).getObjectId());
+    assertTrue(restored.isLoaded(3 * PAGE_SIZE));
+    assertFalse(restored.hasNextPage());
+  }
+
+  public void testRestoreStateWithoutSnapshot() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+
+    // As on first launch, when there is no saved instance state
+    assertFalse(pager.restoreState(null));
+    assertFalse(pager.restoreState(new Bundle()));
+    assertTrue(pager.getObjects().isEmpty());
+    assertEquals(-1, pager.getCurrentPage());
+  }
+
+  public void testSavedStateEndsBeforeObjectsWithoutObjectId() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    ParseTaskUtils.wait(pager.loadPages(4, 4, null));
+    things.get(2 * PAGE_SIZE + 1).setObjectId(null);
+    Bundle state = new Bundle();
+    pager.saveState(state);
+
+    ParseQueryPager<ParseObject> restored =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    assertTrue(restored.restoreState(state));
+
+    assertEquals(2 * PAGE_SIZE, restored.getObjects().size());
+    assertEquals(1, restored.getCurrentPage());
+    assertTrue(restored.hasNextPage());
+    for (ParseObject object : restored.getObjects()) {
+      assertNotNull(object.getObjectId());
+    }
+  }
+
+  public void testLocalDatastoreFirstRevalidatesPage() throws Exception {
+    Parse.enableLocalDatastore(null);
+    ParseObject gone = ParseObject.create("Thing");
+    gone.setObjectId("gone");
+    pinnedThings.addAll(things.subList(0, PAGE_SIZE));
+    pinnedThings.set(2, gone);
+
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    pager.setLocalDatastoreFirst(true);
+    RecordingCallback callback = new RecordingCallback();
+    pager.addOnObjectsChangedCallback(callback);
+
+    List<ParseObject> results = ParseTaskUtils.wait(pager.loadNextPage());
+
+    assertEquals(things.subList(0, PAGE_SIZE), results);
+    assertEquals(things.subList(0, PAGE_SIZE), pager.getObjects());
+    // The local page didn't have a next page, the network one does
+    assertTrue(pager.hasNextPage());
+    assertEquals(2, findCount.get());
+    // The local page is shown first, then only the changed object is replaced
+    assertEquals("inserted 0 " + PAGE_SIZE, callback.events.get(0));
+    assertEquals(3, callback.events.size());
+    assertTrue(callback.events.contains("removed 2 1"));
+    assertTrue(callback.events.contains("inserted 2 1"));
+  }
+
+  public void testTotalCountIsKnownAfterFirstPage() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    pager.setCountEnabled(true);
+    RecordingCallback callback = new RecordingCallback();
+    pager.addOnObjectsChangedCallback(callback);
+    assertEquals(-1, pager.getTotalCount());
+
+    ParseTaskUtils.wait(pager.loadNextPage());
+    callback.await("changed");
+    assertEquals(things.size(), pager.getTotalCount());
+    assertEquals(PAGE_SIZE, pager.getObjects().size());
+
+    // Jump to the last page
+    ParseTaskUtils.wait(pager.loadPages(things.size() / PAGE_SIZE - 1, 4, null));
+    assertEquals(things, pager.getObjects());
+    assertEquals(things.size(), pager.getTotalCount());
+  }
+
+  public void testCancellationCancelsRequest() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Slow"), PAGE_SIZE);
+    CancellationTokenSource cts = new CancellationTokenSource();
+    Task<List<ParseObject>> task = pager.loadNextPage(cts.getToken());
+    assertEquals(1, requestCancellationTokens.size());
+    assertFalse(requestCancellationTokens.get(0).isCompleted());
+
+    cts.cancel();
+    task.waitForCompletion(10, TimeUnit.SECONDS);
+
+    assertTrue(requestCancellationTokens.get(0).isCancelled());
+    assertTrue(task.isCancelled());
+    assertTrue(pager.getObjects().isEmpty());
+  }
+
+  public void testObjectsCanBeReadWhilePagesChange() throws Exception {
+    final AtomicReference<ParseQueryPager<ParseObject>> currentPager =
+        new AtomicReference<>(new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE));
+    final AtomicReference<Throwable> readerError = new AtomicReference<>();
+    final AtomicBoolean isDone = new AtomicBoolean();
+    final AtomicInteger readCount = new AtomicInteger();
+    List<Thread> readers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (!isDone.get()) {
+              List<ParseObject> objects = currentPager.get().getObjects();
+              int size = objects.size();
+              int count = 0;
+              for (ParseObject object : objects) {
+                assertNotNull(object.getObjectId());
+                count++;
+              }
+              // Snapshots never change under us
+              assertEquals(size, count);
+              assertEquals(size, objects.size());
+              readCount.incrementAndGet();
+            }
+          } catch (Throwable e) {
+            readerError.compareAndSet(null, e);
+          }
+        }
+      });
+      reader.start();
+      readers.add(reader);
+    }
+
+    final List<String> mismatches = Collections.synchronizedList(new ArrayList<String>());
+    for (int round = 0; round < 20; round++) {
+      ParseQueryPager<ParseObject> pager =
+          new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+      pager.addOnObjectsChangedCallback(new RecordingCallback() {
+        @Override
+        public void onItemRangeInserted(ParseQueryPager sender, int positionStart, int itemCount) {
+          // The inserted objects are already published when we're told about them
+          if (sender.getObjects().size() < positionStart + itemCount) {
+            mismatches.add("inserted " + positionStart + " " + itemCount);
+          }
+        }
+      });
+      currentPager.set(pager);
+      while (pager.hasNextPage()) {
+        pager.prefetchIfNeeded(pager.getObjects().size());
+        ParseTaskUtils.wait(pager.loadNextPage());
+      }
+      pager.setMaxLoadedPages(1);
+      assertEquals(things.size(), pager.getObjects().size());
+    }
+
+    isDone.set(true);
+    for (Thread reader : readers) {
+      reader.join(10000);
+    }
+    if (readerError.get() != null) {
+      throw new Exception(readerError.get());
+    }
+    assertTrue(readCount.get() > 0);
+    assertTrue(mismatches.toString(), mismatches.isEmpty());
+  }
+
+  public void testHydrationsAreCoalescedAndCached() throws Exception {
+    final AtomicInteger fetchCount = new AtomicInteger();
+    final TaskCompletionSource<Void> fetchGate = new TaskCompletionSource<>();
+    ParseObjectController objectController = mock(ParseObjectController.class);
+    when(objectController.fetchAsync(
+        any(ParseObject.State.class), anyString(), any(ParseDecoder.class)))
+        .thenAnswer(new Answer<Task<ParseObject.State>>() {
+          @Override
+          public Task<ParseObject.State> answer(InvocationOnMock invocation) throws Throwable {
+            fetchCount.incrementAndGet();
+            final ParseObject.State state = (ParseObject.State) invocation.getArguments()[0];
+            return fetchGate.getTask().onSuccess(new Continuation<Void, ParseObject.State>() {
+              @Override
+              public ParseObject.State then(Task<Void> task) throws Exception {
+                return new ParseObject.State.Builder(state)
+                    .put("body", "Body " + state.objectId())
+                    .isComplete(true)
+                    .build();
+              }
+            });
+          }
+        });
+    ParseCorePlugins.getInstance().registerObjectController(objectController);
+
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    ParseTaskUtils.wait(pager.loadNextPage());
+    Task<ParseObject> first = pager.hydrate(1);
+    Task<ParseObject> second = pager.hydrate(1);
+    fetchGate.setResult(null);
+
+    // The list object is completed in place
+    assertSame(things.get(1), ParseTaskUtils.wait(first));
+    assertSame(things.get(1), ParseTaskUtils.wait(second));
+    assertEquals("Body 1", things.get(1).getString("body"));
+    assertEquals(1, fetchCount.get());
+
+    // A refresh replaces the list object, but the hydrated one is still cached
+    ParseObject reloaded = ParseObject.create("Thing");
+    reloaded.setObjectId("1");
+    things.set(1, reloaded);
+    ParseTaskUtils.wait(pager.refresh(null));
+    assertSame(reloaded, pager.getObjects().get(1));
+    assertEquals("Body 1", ParseTaskUtils.wait(pager.hydrate(1)).getString("body"));
+    assertEquals(1, fetchCount.get());
+
+    pager.setMaxHydratedObjects(0);
+    ParseTaskUtils.wait(pager.hydrate(1));
+    assertEquals(2, fetchCount.get());
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse;
+
+import android.test.InstrumentationTestCase;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.parse.ui.widget.ParseQueryPager;
+import com.parse.ui.widget.ParseRecyclerQueryAdapter;
+
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import bolts.Task;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ParseRecyclerQueryAdapterTest extends InstrumentationTestCase {
+
+  private static final int PAGE_SIZE = 5;
+
+  private static class ThingAdapter
+      extends ParseRecyclerQueryAdapter<ParseObject, RecyclerView.ViewHolder> {
+
+    private ThingAdapter(ParseQueryPager<ParseObject> pager) {
+      super(pager);
+    }
+
+    @Override
+    public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+      return new RecyclerView.ViewHolder(new TextView(parent.getContext())) {
+      };
+    }
+
+    @Override
+    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+      ((TextView) holder.itemView).setText(getItem(position).getObjectId());
+    }
+  }
+
+  /**
+   * Records the notifications of an adapter as strings.
+   */
+  private static class RecordingObserver extends RecyclerView.AdapterDataObserver {
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final Semaphore semaphore = new Semaphore(0);
+
+    @Override
+    public void onChanged() {
+      record("changed");
+    }
+
+    @Override
+    public void onItemRangeChanged(int positionStart, int itemCount) {
+      record("changed " + positionStart + " " + itemCount);
+    }
+
+    @Override
+    public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+      onItemRangeChanged(positionStart, itemCount);
+    }
+
+    @Override
+    public void onItemRangeInserted(int positionStart, int itemCount) {
+      record("inserted " + positionStart + " " + itemCount);
+    }
+
+    @Override
+    public void onItemRangeRemoved(int positionStart, int itemCount) {
+      record("removed " + positionStart + " " + itemCount);
+    }
+
+    private void record(String event) {
+      events.add(event);
+      semaphore.release();
+    }
+
+    private void await(int count) throws InterruptedException {
+      assertTrue(semaphore.tryAcquire(count, 10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return the item count an adapter that started with {@code count} items ends up with after
+     * the recorded insertions and removals.
+     */
+    private int itemCount(int count) {
+      synchronized (events) {
+        for (String event : events) {
+          String[] parts = event.split(" ");
+          if (parts[0].equals("inserted")) {
+            count += Integer.parseInt(parts[2]);
+          } else if (parts[0].equals("removed")) {
+            count -= Integer.parseInt(parts[2]);
+          }
+        }
+      }
+      return count;
+    }
+  }
+
+  private List<ParseObject> things;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    things = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      ParseObject thing = ParseObject.create("Thing");
+      thing.setObjectId(String.valueOf(i));
+      things.add(thing);
+    }
+
+    ParseQueryController queryController = mock(ParseQueryController.class);
+    when(queryController.findAsync(
+        any(ParseQuery.State.class), any(ParseUser.class), Matchers.<Task<Void>>any()))
+        .thenAnswer(new Answer<Task<List<ParseObject>>>() {
+          @Override
+          public Task<List<ParseObject>> answer(InvocationOnMock invocation) throws Throwable {
+            ParseQuery.State state = (ParseQuery.State) invocation.getArguments()[0];
+            int start = Math.min(state.skip(), things.size());
+            int end = Math.min(start + state.limit(), things.size());
+            return Task.<List<ParseObject>>forResult(new ArrayList<>(things.subList(start, end)));
+          }
+        });
+    ParseCorePlugins.getInstance().registerQueryController(queryController);
+
+    ParseCurrentUserController currentUserController = mock(ParseCurrentUserController.class);
+    when(currentUserController.getAsync()).thenReturn(Task.forResult(mock(ParseUser.class)));
+    when(currentUserController.getCurrentSessionTokenAsync())
+        .thenReturn(Task.<String>forResult(null));
+    ParseCorePlugins.getInstance().registerCurrentUserController(currentUserController);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    ParseCorePlugins.getInstance().reset();
+    things = null;
+    super.tearDown();
+  }
+
+  private ThingAdapter attach(ParseQueryPager<ParseObject> pager, RecordingObserver observer) {
+    final ThingAdapter adapter = new ThingAdapter(pager);
+    adapter.registerAdapterDataObserver(observer);
+    final RecyclerView recyclerView = new RecyclerView(getInstrumentation().getTargetContext());
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        recyclerView.setAdapter(adapter);
+      }
+    });
+    return adapter;
+  }
+
+  public void testPagesAreInsertedWithoutRebindingOtherRows() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    RecordingObserver observer = new RecordingObserver();
+    ThingAdapter adapter = attach(pager, observer);
+
+    ParseTaskUtils.wait(pager.loadNextPage());
+    observer.await(1);
+    ParseTaskUtils.wait(pager.loadNextPage());
+    observer.await(1);
+
+    assertEquals(2 * PAGE_SIZE, adapter.getItemCount());
+    assertEquals("inserted 0 " + PAGE_SIZE, observer.events.get(0));
+    assertEquals("inserted " + PAGE_SIZE + " " + PAGE_SIZE, observer.events.get(1));
+    assertEquals(2, observer.events.size());
+  }
+
+  public void testEvictedRowsAreDiffed() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    RecordingObserver observer = new RecordingObserver();
+    ThingAdapter adapter = attach(pager, observer);
+    ParseTaskUtils.wait(pager.loadNextPage());
+    pager.prefetchIfNeeded(PAGE_SIZE);
+    ParseTaskUtils.wait(pager.loadNextPage());
+    observer.await(2);
+
+    pager.setMaxLoadedPages(1);
+    observer.await(1);
+
+    // Only the rows of the evicted page are rebound
+    assertEquals("changed 0 " + PAGE_SIZE, observer.events.get(2));
+    assertEquals(3, observer.events.size());
+    assertFalse(adapter.getItem(0).isDataAvailable());
+    assertEquals("0", adapter.getItem(0).getObjectId());
+  }
+
+  public void testChangesDuringADiffAreDispatchedOnce() throws Exception {
+    ParseQueryPager<ParseObject> pager =
+        new ParseQueryPager<>(ParseQuery.getQuery("Thing"), PAGE_SIZE);
+    final CountDownLatch diffing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ThingAdapter adapter = new ThingAdapter(pager) {
+      @Override
+      protected boolean areContentsTheSame(ParseObject oldObject, ParseObject newObject) {
+        diffing.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.areContentsTheSame(oldObject, newObject);
+      }
+    };
+    RecordingObserver observer = new RecordingObserver();
+    adapter.registerAdapterDataObserver(observer);
+    final RecyclerView recyclerView = new RecyclerView(getInstrumentation().getTargetContext());
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        recyclerView.setAdapter(adapter);
+      }
+    });
+    ParseTaskUtils.wait(pager.loadNextPage());
+    pager.prefetchIfNeeded(PAGE_SIZE);
+    ParseTaskUtils.wait(pager.loadNextPage());
+    observer.await(2);
+
+    // Evicting a page starts a diff, which blocks until the pager has changed twice more.
+    pager.setMaxLoadedPages(1);
+    assertTrue(diffing.await(10, TimeUnit.SECONDS));
+    ParseTaskUtils.wait(pager.loadNextPage());
+    ParseTaskUtils.wait(pager.loadNextPage());
+    getInstrumentation().waitForIdleSync();
+    release.countDown();
+
+    final int expectedCount = pager.getObjects().size();
+    final int[] count = new int[1];
+    for (int i = 0; i < 100; i++) {
+      getInstrumentation().runOnMainSync(new Runnable() {
+        @Override
+        public void run() {
+          count[0] = adapter.getItemCount();
+        }
+      });
+      if (count[0] == expectedCount) {
+        break;
+      }
+      Thread.sleep(100);
+    }
+    // Give a duplicate dispatch the chance to show up
+    Thread.sleep(500);
+    getInstrumentation().waitForIdleSync();
+
+    assertEquals(expectedCount, count[0]);
+    assertEquals(expectedCount, observer.itemCount(0));
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+public class ParseBitmapDecoderTest extends InstrumentationTestCase {
+
+  /**
+   * A stream that can't be rewound, like the ones the SDK hands out for {@code ParseFile}s.
+   */
+  private static class UnmarkableInputStream extends FilterInputStream {
+    public UnmarkableInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  private static byte[] encode(Bitmap bitmap) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+    return out.toByteArray();
+  }
+
+  public void testStreamDecodeSkipsPooledBitmapThatIsTooSmall() {
+    byte[] data = encode(Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888));
+    final Bitmap tooSmall = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+    final int[] gets = new int[1];
+    ParseBitmapPool pool = new ParseBitmapPool(1024 * 1024) {
+      @Override
+      Bitmap get(int width, int height, Bitmap.Config config) {
+        gets[0]++;
+        return tooSmall;
+      }
+    };
+
+    Bitmap bitmap = ParseBitmapDecoder.decode(
+        new UnmarkableInputStream(new ByteArrayInputStream(data)), 0, 0, pool);
+
+    assertEquals(1, gets[0]);
+    assertNotNull(bitmap);
+    assertNotSame(tooSmall, bitmap);
+    assertEquals(64, bitmap.getWidth());
+    assertEquals(64, bitmap.getHeight());
+  }
+}
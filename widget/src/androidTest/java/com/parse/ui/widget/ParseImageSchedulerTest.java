@@ -0,0 +1,157 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.test.InstrumentationTestCase;
+
+import com.parse.ui.widget.ParseImageScheduler.Priority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ParseImageSchedulerTest extends InstrumentationTestCase {
+
+  private ParseImageScheduler scheduler;
+  // Keeps the only worker busy, so that the jobs scheduled meanwhile are queued
+  private CountDownLatch blockerStarted;
+  private CountDownLatch releaseBlocker;
+  private List<String> runOrder;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    scheduler = new ParseImageScheduler(1);
+    runOrder = Collections.synchronizedList(new ArrayList<String>());
+    blockerStarted = new CountDownLatch(1);
+    releaseBlocker = new CountDownLatch(1);
+    scheduler.schedule(Priority.VISIBLE, new Runnable() {
+      @Override
+      public void run() {
+        blockerStarted.countDown();
+        try {
+          releaseBlocker.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    assertTrue(blockerStarted.await(10, TimeUnit.SECONDS));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    releaseBlocker.countDown();
+    super.tearDown();
+  }
+
+  private ParseImageScheduler.Job schedule(Priority priority, final String name,
+      final CountDownLatch done) {
+    return scheduler.schedule(priority, new Runnable() {
+      @Override
+      public void run() {
+        runOrder.add(name);
+        done.countDown();
+      }
+    });
+  }
+
+  public void testRunsHigherPriorityClassesFirst() throws Exception {
+    CountDownLatch done = new CountDownLatch(3);
+    schedule(Priority.BACKGROUND, "background", done);
+    schedule(Priority.PREFETCH, "prefetch", done);
+    schedule(Priority.VISIBLE, "visible", done);
+
+    releaseBlocker.countDown();
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("visible", "prefetch", "background"), runOrder);
+  }
+
+  public void testRunsInOrderWithinClass() throws Exception {
+    CountDownLatch done = new CountDownLatch(3);
+    schedule(Priority.PREFETCH, "first", done);
+    schedule(Priority.PREFETCH, "second", done);
+    schedule(Priority.PREFETCH, "third", done);
+
+    releaseBlocker.countDown();
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("first", "second", "third"), runOrder);
+  }
+
+  public void testRaisingPriorityMovesQueuedJobAhead() throws Exception {
+    CountDownLatch done = new CountDownLatch(3);
+    ParseImageScheduler.Job shared = schedule(Priority.BACKGROUND, "shared", done);
+    schedule(Priority.PREFETCH, "prefetch", done);
+    schedule(Priority.PREFETCH, "later", done);
+
+    // As when a visible view starts loading an image that's being prefetched
+    shared.setPriority(Priority.VISIBLE);
+    releaseBlocker.countDown();
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("shared", "prefetch", "later"), runOrder);
+  }
+
+  public void testCancelledJobsAreDroppedBeforeRunning() throws Exception {
+    CountDownLatch done = new CountDownLatch(1);
+    ParseImageScheduler.Job cancelled =
+        schedule(Priority.VISIBLE, "cancelled", new CountDownLatch(1));
+    schedule(Priority.PREFETCH, "kept", done);
+
+    cancelled.cancel();
+    releaseBlocker.countDown();
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Collections.singletonList("kept"), runOrder);
+  }
+
+  public void testMetrics() throws Exception {
+    // The blocker has started
+    assertEquals(1, scheduler.getStartedCount());
+    assertEquals(0, scheduler.getQueueDepth());
+
+    CountDownLatch done = new CountDownLatch(2);
+    schedule(Priority.VISIBLE, "a", done);
+    ParseImageScheduler.Job cancelled = schedule(Priority.VISIBLE, "b", new CountDownLatch(1));
+    schedule(Priority.PREFETCH, "c", done);
+    assertEquals(3, scheduler.getQueueDepth());
+
+    cancelled.cancel();
+    // Cancelling twice only drops it once
+    cancelled.cancel();
+    assertEquals(2, scheduler.getQueueDepth());
+    assertEquals(1, scheduler.getDroppedCount());
+
+    releaseBlocker.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    assertEquals(0, scheduler.getQueueDepth());
+    assertEquals(3, scheduler.getStartedCount());
+    assertEquals(1, scheduler.getDroppedCount());
+    assertTrue(scheduler.getMaxWaitTimeMillis() >= scheduler.getAverageWaitTimeMillis());
+  }
+}
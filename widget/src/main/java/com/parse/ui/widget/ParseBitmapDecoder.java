@@ -0,0 +1,299 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes image data into {@link Bitmap}s no larger than they need to be for the target bounds.
+ *
+ * Decoding is blocking and should never be done on the UI thread. Where possible, decodes reuse
+ * memory from the {@link ParseBitmapPool}.
+ */
+/* package */ final class ParseBitmapDecoder {
+
+  private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+  // Image headers, including any embedded thumbnails, have to fit within this to be decoded from a
+  // stream.
+  private static final int STREAM_MARK_LIMIT = 5 * 1024 * 1024;
+
+  /**
+   * A source of encoded image data that can be decoded more than once.
+   */
+  private interface Source {
+    Bitmap decode(BitmapFactory.Options options);
+
+    /**
+     * @return whether the full decode can be retried after it has failed.
+     */
+    boolean isRepeatable();
+  }
+
+  /**
+   * Decodes {@code data} so that the resulting {@link Bitmap} covers, but is not much larger than,
+   * {@code reqWidth} x {@code reqHeight}.
+   *
+   * The image is first subsampled by the largest power of two that keeps it at least as large as
+   * the requested bounds, then scaled down the rest of the way.
+   *
+   * @param data The encoded image data.
+   * @param reqWidth The target width, or {@code 0} if unconstrained.
+   * @param reqHeight The target height, or {@code 0} if unconstrained.
+   * @return the decoded {@link Bitmap}, or {@code null} if {@code data} is not an image.
+   */
+  public static Bitmap decode(final byte[] data, int reqWidth, int reqHeight) {
+    return decode(new Source() {
+      @Override
+      public Bitmap decode(BitmapFactory.Options options) {
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+      }
+
+      @Override
+      public boolean isRepeatable() {
+        return true;
+      }
+    }, reqWidth, reqHeight, ParseBitmapPool.getInstance());
+  }
+
+  /**
+   * Decodes the image stored in {@code file}, streaming it from disk, so that the resulting
+   * {@link Bitmap} covers, but is not much larger than, {@code reqWidth} x {@code reqHeight}.
+   *
+   * @param file The file storing the encoded image.
+   * @param reqWidth The target width, or {@code 0} if unconstrained.
+   * @param reqHeight The target height, or {@code 0} if unconstrained.
+   * @return the decoded {@link Bitmap}, or {@code null} if {@code file} is not an image.
+   * @see #decode(byte[], int, int)
+   */
+  public static Bitmap decode(final File file, int reqWidth, int reqHeight) {
+    return decode(new Source() {
+      @Override
+      public Bitmap decode(BitmapFactory.Options options) {
+        return BitmapFactory.decodeFile(file.getPath(), options);
+      }
+
+      @Override
+      public boolean isRepeatable() {
+        return true;
+      }
+    }, reqWidth, reqHeight, ParseBitmapPool.getInstance());
+  }
+
+  /**
+   * Decodes the image read from {@code stream} so that the resulting {@link Bitmap} covers, but is
+   * not much larger than, {@code reqWidth} x {@code reqHeight}.
+   *
+   * The stream is read once: the header is buffered while reading the bounds and replayed for the
+   * decode, so the encoded image is never held in memory as a whole. As a result, the decode can't
+   * be retried, so a pooled {@link Bitmap} is only reused if it is known to fit the image. The
+   * stream is not closed.
+   *
+   * @param stream The stream of the encoded image.
+   * @param reqWidth The target width, or {@code 0} if unconstrained.
+   * @param reqHeight The target height, or {@code 0} if unconstrained.
+   * @return the decoded {@link Bitmap}, or {@code null} if {@code stream} is not an image or could
+   * not be read.
+   * @see #decode(byte[], int, int)
+   */
+  public static Bitmap decode(InputStream stream, int reqWidth, int reqHeight) {
+    return decode(stream, reqWidth, reqHeight, ParseBitmapPool.getInstance());
+  }
+
+  /* package */ static Bitmap decode(
+      InputStream stream, int reqWidth, int reqHeight, ParseBitmapPool pool) {
+    final InputStream in = stream.markSupported()
+        ? stream
+        : new BufferedInputStream(stream, STREAM_BUFFER_SIZE);
+    in.mark(STREAM_MARK_LIMIT);
+    return decode(new Source() {
+      @Override
+      public Bitmap decode(BitmapFactory.Options options) {
+        try {
+          in.reset();
+        } catch (IOException e) {
+          // A previous decode read past the mark, so we can't rewind
+          return null;
+        }
+        if (!options.inJustDecodeBounds) {
+          // Stop buffering once we're past the header, or we'd hold the whole image in memory.
+          in.mark(STREAM_BUFFER_SIZE);
+        }
+        return BitmapFactory.decodeStream(in, null, options);
+      }
+
+      @Override
+      public boolean isRepeatable() {
+        return false;
+      }
+    }, reqWidth, reqHeight, pool);
+  }
+
+  private static Bitmap decode(
+      Source source, int reqWidth, int reqHeight, ParseBitmapPool pool) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    source.decode(options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null;
+    }
+
+    int inSampleSize = calculateInSampleSize(
+        options.outWidth, options.outHeight, reqWidth, reqHeight);
+    int width = divideRoundingUp(options.outWidth, inSampleSize);
+    int height = divideRoundingUp(options.outHeight, inSampleSize);
+    options.inSampleSize = inSampleSize;
+    options.inJustDecodeBounds = false;
+    options.inMutable = true;
+    Bitmap inBitmap = pool.get(width, height, Bitmap.Config.ARGB_8888);
+    if (inBitmap != null && !canDecodeInto(inBitmap, width, height)) {
+      // Check up front rather than relying on the retry below, which streams can't do.
+      pool.put(inBitmap);
+      inBitmap = null;
+    }
+    options.inBitmap = inBitmap;
+
+    Bitmap bitmap;
+    try {
+      bitmap = source.decode(options);
+    } catch (IllegalArgumentException e) {
+      // The pooled bitmap can't be reused for this image
+      bitmap = null;
+    }
+    if (bitmap == null && options.inBitmap != null) {
+      pool.put(options.inBitmap);
+      options.inBitmap = null;
+      if (source.isRepeatable()) {
+        bitmap = source.decode(options);
+      }
+    }
+    if (bitmap == null) {
+      return null;
+    }
+    return scale(bitmap, reqWidth, reqHeight);
+  }
+
+  /**
+   * @return whether an ARGB_8888 image of {@code width} x {@code height} can be decoded into
+   * {@code bitmap}.
+   */
+  private static boolean canDecodeInto(Bitmap bitmap, int width, int height) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+        || bitmap.isRecycled() || !bitmap.isMutable()) {
+      return false;
+    }
+    return allocationByteCount(bitmap) >= width * height * 4;
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private static int allocationByteCount(Bitmap bitmap) {
+    return bitmap.getAllocationByteCount();
+  }
+
+  private static int divideRoundingUp(int size, int divisor) {
+    return (size + divisor - 1) / divisor;
+  }
+
+  /**
+   * @return the largest power of two that, when used to subsample an image of {@code width} x
+   * {@code height}, still leaves it at least {@code reqWidth} x {@code reqHeight}.
+   */
+  /* package */ static int calculateInSampleSize(
+      int width, int height, int reqWidth, int reqHeight) {
+    if (reqWidth <= 0 && reqHeight <= 0) {
+      return 1;
+    }
+
+    int inSampleSize = 1;
+    while (fits(width / (inSampleSize * 2), reqWidth)
+        && fits(height / (inSampleSize * 2), reqHeight)) {
+      inSampleSize *= 2;
+    }
+    return inSampleSize;
+  }
+
+  private static boolean fits(int size, int reqSize) {
+    return size > 0 && size >= reqSize;
+  }
+
+  /**
+   * Scales {@code bitmap} down so that it just covers {@code reqWidth} x {@code reqHeight}
+   * while keeping its aspect ratio. Bitmaps that are already small enough are returned as-is.
+   */
+  private static Bitmap scale(Bitmap bitmap, int reqWidth, int reqHeight) {
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    float scale;
+    if (reqWidth > 0 && reqHeight > 0) {
+      scale = Math.max((float) reqWidth / width, (float) reqHeight / height);
+    } else if (reqWidth > 0) {
+      scale = (float) reqWidth / width;
+    } else if (reqHeight > 0) {
+      scale = (float) reqHeight / height;
+    } else {
+      return bitmap;
+    }
+    if (scale >= 1f) {
+      return bitmap;
+    }
+
+    int scaledWidth = Math.max(1, Math.round(width * scale));
+    int scaledHeight = Math.max(1, Math.round(height * scale));
+    Bitmap.Config config = bitmap.getConfig() != null
+        ? bitmap.getConfig()
+        : Bitmap.Config.ARGB_8888;
+    ParseBitmapPool pool = ParseBitmapPool.getInstance();
+    Bitmap scaled = pool.get(scaledWidth, scaledHeight, config);
+    if (scaled != null) {
+      reconfigure(scaled, scaledWidth, scaledHeight, config);
+      scaled.eraseColor(Color.TRANSPARENT);
+    } else {
+      scaled = Bitmap.createBitmap(scaledWidth, scaledHeight, config);
+    }
+    scaled.setHasAlpha(bitmap.hasAlpha());
+    new Canvas(scaled).drawBitmap(bitmap, null, new Rect(0, 0, scaledWidth, scaledHeight),
+        new Paint(Paint.FILTER_BITMAP_FLAG));
+    // The full size decode is only an intermediate, so it can go right back in the pool.
+    pool.put(bitmap);
+    return scaled;
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+    bitmap.reconfigure(width, height, config);
+  }
+
+  private ParseBitmapDecoder() {
+    // do nothing
+  }
+}
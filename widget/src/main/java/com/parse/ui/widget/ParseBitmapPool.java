@@ -0,0 +1,256 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * A pool of {@link Bitmap}s that are no longer displayed or cached, so that decoding images into
+ * {@link ParseImageView}s can reuse their memory instead of allocating new {@code Bitmap}s.
+ * <p>
+ * Only {@code Bitmap}s decoded by {@link ParseImageView} are pooled. They are reference counted
+ * while they are displayed by a {@link ParseImageView} or held by the {@link ParseImageCache}, and
+ * become reusable once nothing references them anymore. Pooled {@code Bitmap}s are bucketed by
+ * their allocation size and reused for any image that fits.
+ * <p>
+ * Reuse requires {@link Build.VERSION_CODES#KITKAT} or above; on older versions the pool is
+ * always empty.
+ */
+public class ParseBitmapPool {
+
+  private static final Object MUTEX = new Object();
+  private static ParseBitmapPool instance;
+
+  // Don't hand out a bitmap for an image that would use less than a quarter of it.
+  private static final int MAX_OVERSIZE_MULTIPLE = 4;
+
+  /**
+   * @return the shared {@code ParseBitmapPool}.
+   */
+  public static ParseBitmapPool getInstance() {
+    synchronized (MUTEX) {
+      if (instance == null) {
+        instance = new ParseBitmapPool((int) (Runtime.getRuntime().maxMemory() / 16));
+      }
+      return instance;
+    }
+  }
+
+  private static boolean canReuse() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private static int sizeOf(Bitmap bitmap) {
+    return bitmap.getAllocationByteCount();
+  }
+
+  private static int bytesPerPixel(Bitmap.Config config) {
+    if (config == Bitmap.Config.ALPHA_8) {
+      return 1;
+    }
+    if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+      return 2;
+    }
+    return 4;
+  }
+
+  private final Object lock = new Object();
+  // Number of ParseImageViews and caches referencing each decoded bitmap. Weak, so that bitmaps
+  // whose holders are garbage collected without releasing them aren't leaked. Bitmap doesn't
+  // override equals(), so this is keyed by identity.
+  private final Map<Bitmap, Integer> references = new WeakHashMap<>();
+  // Reusable bitmaps bucketed by allocation size, and in least recently pooled order.
+  private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+  private final LinkedHashSet<Bitmap> pooled = new LinkedHashSet<>();
+
+  private int maxSize;
+  private int size;
+
+  private int reuseCount;
+  private int allocationCount;
+
+  /* package */ ParseBitmapPool(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Sets the maximum total byte size of the pooled {@code Bitmap}s, discarding some if necessary.
+   *
+   * @param maxSize The maximum size in bytes.
+   */
+  public void setMaxSize(int maxSize) {
+    synchronized (lock) {
+      this.maxSize = maxSize;
+      trimToSizeLocked(maxSize);
+    }
+  }
+
+  /**
+   * Discards all pooled {@code Bitmap}s.
+   */
+  public void clear() {
+    synchronized (lock) {
+      trimToSizeLocked(-1);
+    }
+  }
+
+  /**
+   * @return the total byte size of the pooled {@code Bitmap}s.
+   */
+  public int size() {
+    synchronized (lock) {
+      return size;
+    }
+  }
+
+  /**
+   * @return the number of decodes that reused a pooled {@code Bitmap}.
+   */
+  public int reuseCount() {
+    synchronized (lock) {
+      return reuseCount;
+    }
+  }
+
+  /**
+   * @return the number of decodes that had to allocate a new {@code Bitmap}.
+   */
+  public int allocationCount() {
+    synchronized (lock) {
+      return allocationCount;
+    }
+  }
+
+  /**
+   * Marks {@code bitmap} as displayed or cached so that it isn't reused.
+   */
+  /* package */ void retain(Bitmap bitmap) {
+    synchronized (lock) {
+      Integer count = references.get(bitmap);
+      references.put(bitmap, count == null ? 1 : count + 1);
+    }
+  }
+
+  /**
+   * Releases a reference taken with {@link #retain(Bitmap)}, pooling {@code bitmap} once nothing
+   * references it anymore.
+   */
+  /* package */ void release(Bitmap bitmap) {
+    synchronized (lock) {
+      Integer count = references.get(bitmap);
+      if (count == null) {
+        return;
+      }
+      if (count > 1) {
+        references.put(bitmap, count - 1);
+        return;
+      }
+      references.remove(bitmap);
+      putLocked(bitmap);
+    }
+  }
+
+  /**
+   * Pools a decoded {@code bitmap} that was never handed out, such as an intermediate decode.
+   */
+  /* package */ void put(Bitmap bitmap) {
+    synchronized (lock) {
+      if (!references.containsKey(bitmap)) {
+        putLocked(bitmap);
+      }
+    }
+  }
+
+  /**
+   * Returns a pooled {@code Bitmap} large enough to hold a {@code width} x {@code height} image
+   * of {@code config}, removing it from the pool.
+   *
+   * @return a reusable {@code Bitmap}, or {@code null} if there is none.
+   */
+  /* package */ Bitmap get(int width, int height, Bitmap.Config config) {
+    synchronized (lock) {
+      if (!canReuse() || width <= 0 || height <= 0) {
+        allocationCount++;
+        return null;
+      }
+      int requiredSize = width * height * bytesPerPixel(config);
+      Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry(requiredSize);
+      if (entry == null || entry.getKey() > requiredSize * MAX_OVERSIZE_MULTIPLE) {
+        allocationCount++;
+        return null;
+      }
+      ArrayDeque<Bitmap> bucket = entry.getValue();
+      Bitmap bitmap = bucket.poll();
+      if (bucket.isEmpty()) {
+        buckets.remove(entry.getKey());
+      }
+      pooled.remove(bitmap);
+      size -= entry.getKey();
+      reuseCount++;
+      return bitmap;
+    }
+  }
+
+  private void putLocked(Bitmap bitmap) {
+    if (!canReuse() || bitmap.isRecycled() || !bitmap.isMutable() || pooled.contains(bitmap)) {
+      return;
+    }
+    int bitmapSize = sizeOf(bitmap);
+    if (bitmapSize > maxSize) {
+      return;
+    }
+    ArrayDeque<Bitmap> bucket = buckets.get(bitmapSize);
+    if (bucket == null) {
+      bucket = new ArrayDeque<>();
+      buckets.put(bitmapSize, bucket);
+    }
+    bucket.add(bitmap);
+    pooled.add(bitmap);
+    size += bitmapSize;
+    trimToSizeLocked(maxSize);
+  }
+
+  private void trimToSizeLocked(int maxSize) {
+    Iterator<Bitmap> iterator = pooled.iterator();
+    while (size > maxSize && iterator.hasNext()) {
+      Bitmap bitmap = iterator.next();
+      iterator.remove();
+      int bitmapSize = sizeOf(bitmap);
+      ArrayDeque<Bitmap> bucket = buckets.get(bitmapSize);
+      bucket.remove(bitmap);
+      if (bucket.isEmpty()) {
+        buckets.remove(bitmapSize);
+      }
+      size -= bitmapSize;
+    }
+  }
+}
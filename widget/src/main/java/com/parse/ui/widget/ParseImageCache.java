@@ -0,0 +1,256 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide, in-memory LRU cache of decoded images shared by all {@link ParseImageView}s.
+ * <p>
+ * Entries are keyed by the URL of the {@link com.parse.ParseFile} and the size it was decoded at,
+ * and the cache is bounded by the total byte size of the cached {@link Bitmap}s. By default it
+ * uses an eighth of the maximum heap size.
+ * <p>
+ * The hit, miss and eviction counters can be used to choose a size that fits your application:
+ * <pre>
+ * ParseImageCache cache = ParseImageCache.getInstance();
+ * cache.setMaxSize(16 * 1024 * 1024);
+ * ...
+ * Log.i(&quot;ParseImageCache&quot;, &quot;hits: &quot; + cache.hitCount() + &quot;, misses: &quot;
+ *     + cache.missCount() + &quot;, evictions: &quot; + cache.evictionCount());
+ * </pre>
+ */
+public class ParseImageCache {
+
+  private static final Object MUTEX = new Object();
+  private static ParseImageCache instance;
+
+  /**
+   * @return the shared {@code ParseImageCache}.
+   */
+  public static ParseImageCache getInstance() {
+    synchronized (MUTEX) {
+      if (instance == null) {
+        instance = new ParseImageCache((int) (Runtime.getRuntime().maxMemory() / 8));
+      }
+      return instance;
+    }
+  }
+
+  private static String createKey(String url, int width, int height) {
+    return url + "#" + width + "x" + height;
+  }
+
+  private static int sizeOf(Bitmap bitmap) {
+    return bitmap.getRowBytes() * bitmap.getHeight();
+  }
+
+  private final Object lock = new Object();
+  private final LinkedHashMap<String, Bitmap> map = new LinkedHashMap<>(0, 0.75f, true);
+
+  private int maxSize;
+  private int size;
+
+  private int hitCount;
+  private int missCount;
+  private int putCount;
+  private int evictionCount;
+
+  private ParseImageCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the image for {@code url} decoded at {@code width} x {@code height}, if it is cached.
+   * This is cheap enough to be called while binding views on the UI thread.
+   *
+   * @param url The URL of the {@link com.parse.ParseFile}.
+   * @param width The width the image was decoded for, or {@code 0} if unconstrained.
+   * @param height The height the image was decoded for, or {@code 0} if unconstrained.
+   * @return the cached {@link Bitmap}, or {@code null}.
+   */
+  public Bitmap get(String url, int width, int height) {
+    if (url == null) {
+      return null;
+    }
+    String key = createKey(url, width, height);
+    synchronized (lock) {
+      Bitmap bitmap = map.get(key);
+      if (bitmap != null) {
+        hitCount++;
+      } else {
+        missCount++;
+      }
+      return bitmap;
+    }
+  }
+
+  /**
+   * @return whether the image for {@code url} decoded at {@code width} x {@code height} is cached.
+   * Unlike {@link #get(String, int, int)} this does not count as a use of the image.
+   */
+  /* package */ boolean contains(String url, int width, int height) {
+    if (url == null) {
+      return false;
+    }
+    String key = createKey(url, width, height);
+    synchronized (lock) {
+      return map.containsKey(key);
+    }
+  }
+
+  /**
+   * Caches the image for {@code url} decoded at {@code width} x {@code height}, evicting the
+   * least recently used images if the cache grows too large.
+   *
+   * @param url The URL of the {@link com.parse.ParseFile}.
+   * @param width The width the image was decoded for, or {@code 0} if unconstrained.
+   * @param height The height the image was decoded for, or {@code 0} if unconstrained.
+   * @param bitmap The decoded image.
+   */
+  public void put(String url, int width, int height, Bitmap bitmap) {
+    if (url == null || bitmap == null) {
+      return;
+    }
+    String key = createKey(url, width, height);
+    ParseBitmapPool pool = ParseBitmapPool.getInstance();
+    synchronized (lock) {
+      putCount++;
+      pool.retain(bitmap);
+      size += sizeOf(bitmap);
+      Bitmap previous = map.put(key, bitmap);
+      if (previous != null) {
+        size -= sizeOf(previous);
+        pool.release(previous);
+      }
+      trimToSizeLocked(maxSize);
+    }
+  }
+
+  /**
+   * Sets the maximum total byte size of the cached images, evicting images if necessary.
+   *
+   * @param maxSize The maximum size in bytes.
+   */
+  public void setMaxSize(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    synchronized (lock) {
+      this.maxSize = maxSize;
+      trimToSizeLocked(maxSize);
+    }
+  }
+
+  /**
+   * Evicts the least recently used images until the cache is no larger than {@code maxSize}
+   * bytes. Useful from {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+   *
+   * @param maxSize The size in bytes to trim the cache to.
+   */
+  public void trimToSize(int maxSize) {
+    synchronized (lock) {
+      trimToSizeLocked(maxSize);
+    }
+  }
+
+  /**
+   * Evicts all images from the cache.
+   */
+  public void evictAll() {
+    trimToSize(-1);
+  }
+
+  private void trimToSizeLocked(int maxSize) {
+    ParseBitmapPool pool = ParseBitmapPool.getInstance();
+    Iterator<Map.Entry<String, Bitmap>> iterator = map.entrySet().iterator();
+    while (size > maxSize && iterator.hasNext()) {
+      Bitmap bitmap = iterator.next().getValue();
+      iterator.remove();
+      size -= sizeOf(bitmap);
+      evictionCount++;
+      // Evicted images can be reused for new decodes once no ParseImageView displays them.
+      pool.release(bitmap);
+    }
+  }
+
+  /**
+   * @return the total byte size of the cached images.
+   */
+  public int size() {
+    synchronized (lock) {
+      return size;
+    }
+  }
+
+  /**
+   * @return the maximum total byte size of the cached images.
+   */
+  public int maxSize() {
+    synchronized (lock) {
+      return maxSize;
+    }
+  }
+
+  /**
+   * @return the number of times {@link #get(String, int, int)} returned a cached image.
+   */
+  public int hitCount() {
+    synchronized (lock) {
+      return hitCount;
+    }
+  }
+
+  /**
+   * @return the number of times {@link #get(String, int, int)} did not find a cached image.
+   */
+  public int missCount() {
+    synchronized (lock) {
+      return missCount;
+    }
+  }
+
+  /**
+   * @return the number of times {@link #put(String, int, int, Bitmap)} was called.
+   */
+  public int putCount() {
+    synchronized (lock) {
+      return putCount;
+    }
+  }
+
+  /**
+   * @return the number of images that have been evicted.
+   */
+  public int evictionCount() {
+    synchronized (lock) {
+      return evictionCount;
+    }
+  }
+}
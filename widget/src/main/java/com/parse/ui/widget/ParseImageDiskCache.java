@@ -0,0 +1,545 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A size-bounded cache of downsampled {@link ParseImageView} images in the app's cache directory.
+ * <p>
+ * The Parse SDK caches the original bytes of each {@link com.parse.ParseFile}, so filling a small
+ * view from it still means decoding the full size image. This cache instead stores each image
+ * re-encoded at the size it was decoded at, keyed by URL and that size, so images that were
+ * loaded in a previous session only need a small file read and decoded. Views of slightly
+ * different sizes share the smallest cached copy that still covers them.
+ * <p>
+ * Entries are evicted in least recently used order. Accesses are recorded in a journal so that the
+ * order survives process restarts.
+ */
+public class ParseImageDiskCache {
+
+  private static final String DIRECTORY_NAME = "com.parse.ui.images";
+  private static final long DEFAULT_MAX_SIZE = 20 * 1024 * 1024;
+  private static final int JPEG_QUALITY = 85;
+
+  private static final String JOURNAL_FILE = "journal";
+  private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String CLEAN = "CLEAN";
+  private static final String READ = "READ";
+  private static final String REMOVE = "REMOVE";
+  // Compact the journal once it holds this many redundant lines.
+  private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+  private static final Object MUTEX = new Object();
+  private static ParseImageDiskCache instance;
+
+  /**
+   * @param context Any {@link Context}, used to locate the app's cache directory.
+   * @return the shared {@code ParseImageDiskCache}.
+   */
+  public static ParseImageDiskCache getInstance(Context context) {
+    synchronized (MUTEX) {
+      if (instance == null) {
+        File directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+        instance = new ParseImageDiskCache(directory, DEFAULT_MAX_SIZE);
+      }
+      return instance;
+    }
+  }
+
+  /**
+   * @return the shared {@code ParseImageDiskCache}, or {@code null} if no {@link ParseImageView}
+   * has been used yet.
+   */
+  /* package */ static ParseImageDiskCache getInstance() {
+    synchronized (MUTEX) {
+      return instance;
+    }
+  }
+
+  private static String createKey(String urlHash, int width, int height) {
+    return urlHash + "_" + width + "x" + height;
+  }
+
+  private static String hash(String url) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] hash = digest.digest(url.getBytes("UTF-8"));
+      StringBuilder builder = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+        builder.append(Character.forDigit(b & 0xf, 16));
+      }
+      return builder.toString();
+    } catch (NoSuchAlgorithmException | IOException e) {
+      // Every platform supports MD5 and UTF-8
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return the image size in {@code key}, or {@code null} if it's a key from before keys included
+   * the size.
+   */
+  private static Point parseSize(String key) {
+    int separator = key.indexOf('_');
+    int x = key.indexOf('x', separator + 1);
+    if (separator < 0 || x < 0) {
+      return null;
+    }
+    try {
+      return new Point(
+          Integer.parseInt(key.substring(separator + 1, x)),
+          Integer.parseInt(key.substring(x + 1)));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return whether an image dimension of {@code size} can be scaled down to {@code reqSize}
+   * without it being large enough to subsample.
+   */
+  private static boolean covers(int size, int reqSize) {
+    return reqSize <= 0 || (size >= reqSize && size < 2 * reqSize);
+  }
+
+  private final Object lock = new Object();
+  private final File directory;
+  private final File journalFile;
+  // File sizes by key, in least recently used order.
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(0, 0.75f, true);
+  // Keys by the hash of their URL, to find the sizes an image is cached at.
+  private final Map<String, Set<String>> keysByUrl = new HashMap<>();
+
+  private Writer journalWriter;
+  private boolean opened;
+  private int redundantOpCount;
+
+  private long maxSize;
+  private long size;
+
+  private int hitCount;
+  private int missCount;
+
+  private ParseImageDiskCache(File directory, long maxSize) {
+    this.directory = directory;
+    this.journalFile = new File(directory, JOURNAL_FILE);
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Sets the maximum total byte size of the cached files, evicting some if necessary.
+   *
+   * @param maxSize The maximum size in bytes.
+   */
+  public void setMaxSize(long maxSize) {
+    synchronized (lock) {
+      this.maxSize = maxSize;
+      if (openLocked()) {
+        trimToSizeLocked(maxSize);
+      }
+    }
+  }
+
+  /**
+   * Deletes all cached files.
+   */
+  public void clear() {
+    synchronized (lock) {
+      if (openLocked()) {
+        trimToSizeLocked(-1);
+      }
+    }
+  }
+
+  /**
+   * @return the total byte size of the cached files.
+   */
+  public long size() {
+    synchronized (lock) {
+      openLocked();
+      return size;
+    }
+  }
+
+  /**
+   * @return the maximum total byte size of the cached files.
+   */
+  public long maxSize() {
+    synchronized (lock) {
+      return maxSize;
+    }
+  }
+
+  /**
+   * @return the number of lookups that found a cached file.
+   */
+  public int hitCount() {
+    synchronized (lock) {
+      return hitCount;
+    }
+  }
+
+  /**
+   * @return the number of lookups that didn't find a cached file.
+   */
+  public int missCount() {
+    synchronized (lock) {
+      return missCount;
+    }
+  }
+
+  /**
+   * Looks up the smallest cached image of {@code url} that covers {@code width} x {@code height}.
+   * This may do disk I/O and should never be called on the UI thread.
+   *
+   * @return the cached file, or {@code null} if there is none.
+   */
+  /* package */ File get(String url, int width, int height) {
+    synchronized (lock) {
+      if (!openLocked()) {
+        return null;
+      }
+      String key = findKeyLocked(hash(url), width, height);
+      if (key == null || entries.get(key) == null) {
+        missCount++;
+        return null;
+      }
+      File file = new File(directory, key);
+      if (!file.exists()) {
+        // Deleted from underneath us, likely by the system clearing the cache directory
+        removeLocked(key);
+        missCount++;
+        return null;
+      }
+      hitCount++;
+      appendLocked(READ, key);
+      return file;
+    }
+  }
+
+  /**
+   * Re-encodes {@code bitmap}, the image of {@code url} decoded for {@code width} x
+   * {@code height}, and caches it. This does disk I/O and should never be called on the UI thread.
+   */
+  /* package */ void put(String url, int width, int height, Bitmap bitmap) {
+    // An image smaller than the target is at its original size, which covers the target as well
+    // as any larger copy would.
+    String key = createKey(hash(url),
+        Math.max(bitmap.getWidth(), width), Math.max(bitmap.getHeight(), height));
+    File tempFile;
+    synchronized (lock) {
+      if (!openLocked()) {
+        return;
+      }
+      tempFile = new File(directory, key + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+    }
+
+    // Encode outside of the lock so that other threads can keep reading.
+    Bitmap.CompressFormat format = bitmap.hasAlpha()
+        ? Bitmap.CompressFormat.PNG
+        : Bitmap.CompressFormat.JPEG;
+    boolean written;
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tempFile);
+      written = bitmap.compress(format, JPEG_QUALITY, out);
+    } catch (IOException e) {
+      written = false;
+    } finally {
+      closeQuietly(out);
+    }
+
+    synchronized (lock) {
+      File file = new File(directory, key);
+      if (!written || !tempFile.renameTo(file)) {
+        tempFile.delete();
+        return;
+      }
+      long fileSize = file.length();
+      Long previousSize = entries.put(key, fileSize);
+      if (previousSize != null) {
+        size -= previousSize;
+        redundantOpCount++;
+      }
+      size += fileSize;
+      indexLocked(key);
+      appendLocked(CLEAN, key + " " + fileSize);
+      trimToSizeLocked(maxSize);
+    }
+  }
+
+  /**
+   * Reads the journal the first time the cache is used.
+   *
+   * @return whether the cache is usable.
+   */
+  private boolean openLocked() {
+    if (opened) {
+      return journalWriter != null;
+    }
+    opened = true;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      return false;
+    }
+
+    if (journalFile.exists()) {
+      try {
+        readJournalLocked();
+      } catch (IOException e) {
+        // Corrupt journal, start over
+        entries.clear();
+        keysByUrl.clear();
+        size = 0;
+      }
+    }
+
+    try {
+      if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+          && redundantOpCount >= entries.size()) {
+        rebuildJournalLocked();
+      } else {
+        if (!journalFile.exists()) {
+          rebuildJournalLocked();
+        }
+        journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+      }
+    } catch (IOException e) {
+      journalWriter = null;
+      return false;
+    }
+    // Images cached before keys included their size can't be looked up.
+    for (String key : new ArrayList<>(entries.keySet())) {
+      if (parseSize(key) == null) {
+        removeLocked(key);
+      }
+    }
+    deleteUntrackedFilesLocked();
+    return true;
+  }
+
+  private void readJournalLocked() throws IOException {
+    BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+    try {
+      int lineCount = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineCount++;
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+          // Truncated by a crash mid-write, everything before it is still valid
+          break;
+        }
+        String op = parts[0];
+        String key = parts[1];
+        if (CLEAN.equals(op) && parts.length == 3) {
+          long fileSize = Long.parseLong(parts[2]);
+          Long previousSize = entries.put(key, fileSize);
+          if (previousSize != null) {
+            size -= previousSize;
+          }
+          size += fileSize;
+          indexLocked(key);
+        } else if (READ.equals(op)) {
+          entries.get(key);
+        } else if (REMOVE.equals(op)) {
+          Long previousSize = entries.remove(key);
+          if (previousSize != null) {
+            size -= previousSize;
+          }
+          unindexLocked(key);
+        } else {
+          break;
+        }
+      }
+      redundantOpCount = lineCount - entries.size();
+    } catch (NumberFormatException e) {
+      throw new IOException(e);
+    } finally {
+      closeQuietly(reader);
+    }
+  }
+
+  /**
+   * Replaces the journal with one that only holds the current entries, in least recently used
+   * order.
+   */
+  private void rebuildJournalLocked() throws IOException {
+    closeQuietly(journalWriter);
+    journalWriter = null;
+
+    File tempFile = new File(directory, JOURNAL_FILE_TEMP);
+    Writer writer = new BufferedWriter(new FileWriter(tempFile));
+    try {
+      for (Map.Entry<String, Long> entry : entries.entrySet()) {
+        writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+    if (!tempFile.renameTo(journalFile)) {
+      throw new IOException("Unable to replace " + journalFile);
+    }
+    redundantOpCount = 0;
+    journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+  }
+
+  private void deleteUntrackedFilesLocked() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Set<String> keep = new HashSet<>(entries.keySet());
+    keep.add(JOURNAL_FILE);
+    for (File file : files) {
+      if (!keep.contains(file.getName())) {
+        file.delete();
+      }
+    }
+  }
+
+  private void appendLocked(String op, String args) {
+    if (journalWriter == null) {
+      return;
+    }
+    try {
+      journalWriter.write(op + " " + args + "\n");
+      journalWriter.flush();
+      if (!CLEAN.equals(op)) {
+        redundantOpCount++;
+      }
+      if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+          && redundantOpCount >= entries.size()) {
+        rebuildJournalLocked();
+      }
+    } catch (IOException e) {
+      // Stop caching rather than let the journal diverge from the files on disk.
+      closeQuietly(journalWriter);
+      journalWriter = null;
+    }
+  }
+
+  private void removeLocked(String key) {
+    Long fileSize = entries.remove(key);
+    if (fileSize == null) {
+      return;
+    }
+    size -= fileSize;
+    unindexLocked(key);
+    new File(directory, key).delete();
+    appendLocked(REMOVE, key);
+  }
+
+  private void trimToSizeLocked(long maxSize) {
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while (size > maxSize && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      iterator.remove();
+      size -= entry.getValue();
+      unindexLocked(entry.getKey());
+      new File(directory, entry.getKey()).delete();
+      appendLocked(REMOVE, entry.getKey());
+    }
+  }
+
+  /**
+   * @return the key of the smallest cached image of the URL hashed to {@code urlHash} that covers
+   * {@code width} x {@code height}, or {@code null} if there is none.
+   */
+  private String findKeyLocked(String urlHash, int width, int height) {
+    Set<String> keys = keysByUrl.get(urlHash);
+    if (keys == null) {
+      return null;
+    }
+    String smallestKey = null;
+    long smallestArea = Long.MAX_VALUE;
+    for (String key : keys) {
+      Point size = parseSize(key);
+      long area = (long) size.x * size.y;
+      if (covers(size.x, width) && covers(size.y, height) && area < smallestArea) {
+        smallestKey = key;
+        smallestArea = area;
+      }
+    }
+    return smallestKey;
+  }
+
+  private void indexLocked(String key) {
+    if (parseSize(key) == null) {
+      return;
+    }
+    String urlHash = key.substring(0, key.indexOf('_'));
+    Set<String> keys = keysByUrl.get(urlHash);
+    if (keys == null) {
+      keys = new HashSet<>();
+      keysByUrl.put(urlHash, keys);
+    }
+    keys.add(key);
+  }
+
+  private void unindexLocked(String key) {
+    int separator = key.indexOf('_');
+    if (separator < 0) {
+      return;
+    }
+    String urlHash = key.substring(0, separator);
+    Set<String> keys = keysByUrl.get(urlHash);
+    if (keys != null && keys.remove(key) && keys.isEmpty()) {
+      keysByUrl.remove(urlHash);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // do nothing
+    }
+  }
+}
@@ -0,0 +1,467 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.graphics.Bitmap;
+
+import com.parse.ParseFile;
+import com.parse.ui.widget.ParseImageScheduler.Priority;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import bolts.CancellationToken;
+import bolts.CancellationTokenRegistration;
+import bolts.CancellationTokenSource;
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * Fetches and decodes images for {@link ParseImageView}s on the {@link ParseImageScheduler}.
+ * <p>
+ * Concurrent loads of the same file at the same size share a single fetch and decode, scheduled at
+ * the highest priority of the loads sharing it. Each caller can cancel its own load, and the
+ * shared work is only cancelled once every caller has cancelled.
+ * <p>
+ * Successfully loaded images are added to the {@link ParseImageCache} and, re-encoded, to the
+ * {@link ParseImageDiskCache}. They are retained in the {@link ParseBitmapPool} on behalf of each
+ * caller. Callers must release them once they are displayed or discarded.
+ */
+/* package */ class ParseImageLoader {
+
+  private static final Object MUTEX = new Object();
+  private static ParseImageLoader instance;
+
+  /* package */ static ParseImageLoader getInstance() {
+    synchronized (MUTEX) {
+      if (instance == null) {
+        instance = new ParseImageLoader(ParseImageScheduler.getInstance());
+      }
+      return instance;
+    }
+  }
+
+  private static String createKey(String url, int width, int height) {
+    return url + "#" + width + "x" + height;
+  }
+
+  /**
+   * A caller's load, which may be sharing its {@link Request} with other callers.
+   */
+  /* package */ class Load {
+    private final TaskCompletionSource<Bitmap> tcs = new TaskCompletionSource<>();
+    private final Request request;
+    private Priority priority;
+    private CancellationTokenRegistration registration;
+
+    private Load(Request request, Priority priority) {
+      this.request = request;
+      this.priority = priority;
+    }
+
+    /**
+     * @return A {@link Task} that resolves to the image, or {@code null} if the file is not an
+     * image. The image is retained in the {@link ParseBitmapPool} and must be released by the
+     * caller.
+     */
+    /* package */ Task<Bitmap> getTask() {
+      return tcs.getTask();
+    }
+
+    /**
+     * Changes the priority of this load. The shared fetch and decode runs at the highest priority
+     * of the loads waiting on it.
+     */
+    /* package */ void setPriority(Priority priority) {
+      synchronized (lock) {
+        this.priority = priority;
+        reprioritizeLocked(request);
+      }
+    }
+  }
+
+  /**
+   * A fetch and decode shared by all of its {@link Load}s.
+   */
+  private static class Request {
+    private final String key;
+    private final ParseFile file;
+    private final CancellationTokenSource cts = new CancellationTokenSource();
+    private final List<Load> loads = new ArrayList<>();
+    private ParseImageScheduler.Job job;
+    // Whether the request has finished or been cancelled, and no longer counts towards its file.
+    private boolean isDone = false;
+
+    private Request(String key, ParseFile file) {
+      this.key = key;
+      this.file = file;
+    }
+  }
+
+  /**
+   * Fails reads once its {@link CancellationToken} is cancelled, so that a decode is abandoned as
+   * soon as nobody is waiting on it anymore.
+   */
+  private static class CancellableInputStream extends FilterInputStream {
+    private final CancellationToken ct;
+
+    private CancellableInputStream(InputStream in, CancellationToken ct) {
+      super(in);
+      this.ct = ct;
+    }
+
+    private void throwIfCancellationRequested() throws IOException {
+      if (ct.isCancellationRequested()) {
+        throw new InterruptedIOException("Load was cancelled");
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      throwIfCancellationRequested();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      throwIfCancellationRequested();
+      return super.read(buffer, offset, count);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      throwIfCancellationRequested();
+      return super.skip(count);
+    }
+  }
+
+  private static void closeQuietly(InputStream stream) {
+    if (stream == null) {
+      return;
+    }
+    try {
+      stream.close();
+    } catch (IOException e) {
+      // do nothing
+    }
+  }
+
+  private final Object lock = new Object();
+  private final Map<String, Request> requests = new HashMap<>();
+  // How many requests that aren't done are using each file, at any size. ParseFile#cancel()
+  // cancels every transfer of the file, so it's only called once none of them need it.
+  private final Map<ParseFile, Integer> fileRequestCounts = new IdentityHashMap<>();
+  private final ParseImageScheduler scheduler;
+
+  private ParseImageLoader(ParseImageScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Loads the image stored in {@code file}, decoded to cover {@code width} x {@code height}.
+   *
+   * @param file The file storing the image.
+   * @param width The target width, or {@code 0} if unconstrained.
+   * @param height The target height, or {@code 0} if unconstrained.
+   * @param priority The priority of this load.
+   * @param ct Token used to cancel this caller's load.
+   * @return the caller's {@link Load}.
+   */
+  /* package */ Load loadAsync(ParseFile file, final int width, final int height,
+      Priority priority, CancellationToken ct) {
+    final String url = file.getUrl();
+    // Files without a URL can't be shared, since we have nothing to key them by.
+    String key = url != null ? createKey(url, width, height) : null;
+
+    final Load load;
+    synchronized (lock) {
+      Request request = key != null ? requests.get(key) : null;
+      if (request != null) {
+        load = new Load(request, priority);
+        request.loads.add(load);
+        reprioritizeLocked(request);
+      } else {
+        final Request newRequest = new Request(key, file);
+        if (key != null) {
+          requests.put(key, newRequest);
+        }
+        Integer fileRequestCount = fileRequestCounts.get(file);
+        fileRequestCounts.put(file, fileRequestCount == null ? 1 : fileRequestCount + 1);
+        load = new Load(newRequest, priority);
+        newRequest.loads.add(load);
+        newRequest.job = scheduler.schedule(priority, new Runnable() {
+          @Override
+          public void run() {
+            execute(newRequest, url, width, height);
+          }
+        });
+      }
+    }
+
+    if (ct != null) {
+      load.registration = ct.register(new Runnable() {
+        @Override
+        public void run() {
+          cancel(load);
+        }
+      });
+    }
+    return load;
+  }
+
+  /**
+   * Loads the image stored in {@code file} into the {@link ParseImageCache} without displaying it.
+   *
+   * @param file The file storing the image.
+   * @param width The target width, or {@code 0} if unconstrained.
+   * @param height The target height, or {@code 0} if unconstrained.
+   * @param ct Token used to cancel this caller's load.
+   * @return A {@link Task} that resolves when the image is cached.
+   */
+  /* package */ Task<Void> prefetchAsync(
+      ParseFile file, int width, int height, CancellationToken ct) {
+    return prefetchAsync(file, width, height, Priority.PREFETCH, ct);
+  }
+
+  /**
+   * Loads the image stored in {@code file} into the {@link ParseImageCache} without displaying it.
+   *
+   * @param file The file storing the image.
+   * @param width The target width, or {@code 0} if unconstrained.
+   * @param height The target height, or {@code 0} if unconstrained.
+   * @param priority The priority of this load.
+   * @param ct Token used to cancel this caller's load.
+   * @return A {@link Task} that resolves when the image is cached.
+   */
+  /* package */ Task<Void> prefetchAsync(
+      ParseFile file, int width, int height, Priority priority, CancellationToken ct) {
+    if (ParseImageCache.getInstance().contains(file.getUrl(), width, height)) {
+      return Task.forResult(null);
+    }
+    Load load = loadAsync(file, width, height, priority, ct);
+    return load.getTask().onSuccess(new Continuation<Bitmap, Void>() {
+      @Override
+      public Void then(Task<Bitmap> task) throws Exception {
+        Bitmap bitmap = task.getResult();
+        if (bitmap != null) {
+          // It's in the cache, we don't need to hold on to it.
+          ParseBitmapPool.getInstance().release(bitmap);
+        }
+        return null;
+      }
+    });
+  }
+
+  private void reprioritizeLocked(Request request) {
+    if (request.job == null || request.loads.isEmpty()) {
+      return;
+    }
+    Priority highest = Priority.BACKGROUND;
+    for (Load load : request.loads) {
+      if (load.priority.compareTo(highest) < 0) {
+        highest = load.priority;
+      }
+    }
+    request.job.setPriority(highest);
+  }
+
+  /**
+   * Fetches and decodes the image on a {@link ParseImageScheduler} worker thread, preferring a
+   * downsampled copy in the {@link ParseImageDiskCache} over the original file.
+   */
+  private void execute(Request request, String url, int width, int height) {
+    CancellationToken ct = request.cts.getToken();
+    if (ct.isCancellationRequested()) {
+      finish(request, Task.<Bitmap>cancelled());
+      return;
+    }
+
+    // Images decoded at their original size wouldn't be any smaller on disk.
+    ParseImageDiskCache diskCache = url != null && (width > 0 || height > 0)
+        ? ParseImageDiskCache.getInstance()
+        : null;
+    if (diskCache != null) {
+      File cachedFile = diskCache.get(url, width, height);
+      // May be null if the file was evicted while we were reading it, in which case we'll fall
+      // back to the original.
+      Bitmap bitmap = cachedFile != null
+          ? ParseBitmapDecoder.decode(cachedFile, width, height)
+          : null;
+      if (bitmap != null) {
+        ParseBitmapPool.getInstance().retain(bitmap);
+        ParseImageCache.getInstance().put(url, width, height, bitmap);
+        finish(request, Task.forResult(bitmap));
+        return;
+      }
+    }
+
+    // The SDK downloads the file to its cache before opening it, so this stream is local.
+    Task<InputStream> fetchTask = request.file.getDataStreamInBackground();
+    try {
+      fetchTask.waitForCompletion();
+    } catch (InterruptedException e) {
+      finish(request, Task.<Bitmap>cancelled());
+      return;
+    }
+    if (fetchTask.isFaulted()) {
+      finish(request, Task.<Bitmap>forError(fetchTask.getError()));
+      return;
+    }
+    InputStream stream = fetchTask.isCancelled() ? null : fetchTask.getResult();
+    if (fetchTask.isCancelled() || ct.isCancellationRequested()) {
+      closeQuietly(stream);
+      finish(request, Task.<Bitmap>cancelled());
+      return;
+    }
+
+    Bitmap bitmap;
+    if (stream == null) {
+      bitmap = null;
+    } else {
+      try {
+        bitmap = ParseBitmapDecoder.decode(new CancellableInputStream(stream, ct), width, height);
+      } finally {
+        closeQuietly(stream);
+      }
+    }
+    if (ct.isCancellationRequested()) {
+      if (bitmap != null) {
+        ParseBitmapPool.getInstance().put(bitmap);
+      }
+      finish(request, Task.<Bitmap>cancelled());
+      return;
+    }
+    if (bitmap == null) {
+      finish(request, Task.<Bitmap>forResult(null));
+      return;
+    }
+
+    ParseBitmapPool pool = ParseBitmapPool.getInstance();
+    // Hold on to it until it has been handed to every load.
+    pool.retain(bitmap);
+    ParseImageCache.getInstance().put(url, width, height, bitmap);
+    if (diskCache == null) {
+      finish(request, Task.forResult(bitmap));
+      return;
+    }
+    // Re-encode it after it has been handed out, so displaying it doesn't wait on the disk.
+    pool.retain(bitmap);
+    finish(request, Task.forResult(bitmap));
+    diskCache.put(url, width, height, bitmap);
+    pool.release(bitmap);
+  }
+
+  private void finish(Request request, Task<Bitmap> task) {
+    List<Load> loads;
+    synchronized (lock) {
+      if (request.key != null && requests.get(request.key) == request) {
+        requests.remove(request.key);
+      }
+      releaseFileLocked(request);
+      loads = new ArrayList<>(request.loads);
+      request.loads.clear();
+    }
+
+    ParseBitmapPool pool = ParseBitmapPool.getInstance();
+    Bitmap bitmap = task.isCancelled() || task.isFaulted() ? null : task.getResult();
+    for (Load load : loads) {
+      if (load.registration != null) {
+        load.registration.close();
+      }
+      if (task.isCancelled()) {
+        load.tcs.trySetCancelled();
+      } else if (task.isFaulted()) {
+        load.tcs.trySetError(task.getError());
+      } else {
+        if (bitmap != null) {
+          pool.retain(bitmap);
+        }
+        if (!load.tcs.trySetResult(bitmap) && bitmap != null) {
+          pool.release(bitmap);
+        }
+      }
+    }
+    if (bitmap != null) {
+      pool.release(bitmap);
+    }
+  }
+
+  private void cancel(Load load) {
+    Request request = load.request;
+    boolean cancelRequest;
+    synchronized (lock) {
+      if (!request.loads.remove(load)) {
+        // Already finished
+        return;
+      }
+      cancelRequest = request.loads.isEmpty();
+      if (cancelRequest && request.key != null && requests.get(request.key) == request) {
+        requests.remove(request.key);
+      }
+      if (cancelRequest) {
+        if (releaseFileLocked(request)) {
+          // Stops the download. This cancels every transfer of the file, so it's done while no
+          // other request can start using it.
+          request.file.cancel();
+        }
+      } else {
+        reprioritizeLocked(request);
+      }
+    }
+    load.tcs.trySetCancelled();
+
+    if (cancelRequest) {
+      // Nobody is waiting on this request anymore. If it's still queued, drop it before it uses
+      // the network or CPU.
+      request.cts.cancel();
+      request.job.cancel();
+    }
+  }
+
+  /**
+   * Stops counting {@code request} towards its file, if it hasn't already.
+   *
+   * @return whether no other request is using the file anymore.
+   */
+  private boolean releaseFileLocked(Request request) {
+    if (request.isDone) {
+      return false;
+    }
+    request.isDone = true;
+    Integer count = fileRequestCounts.get(request.file);
+    if (count == null || count <= 1) {
+      fileRequestCounts.remove(request.file);
+      return true;
+    }
+    fileRequestCounts.put(request.file, count - 1);
+    return false;
+  }
+}
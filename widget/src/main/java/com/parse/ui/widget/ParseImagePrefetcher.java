@@ -0,0 +1,167 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.widget.AbsListView;
+import android.widget.ListView;
+
+import com.parse.ParseFile;
+import com.parse.ParseObject;
+
+import bolts.CancellationTokenSource;
+
+/**
+ * Prefetches the images of the rows just beyond the visible window of a {@link ParseQueryAdapter}
+ * in the direction the user is scrolling, so they are already in the {@link ParseImageCache} when
+ * their rows are bound.
+ * <p>
+ * Prefetches run at {@link ParseImageScheduler.Priority#PREFETCH}, after the images of visible
+ * rows, and are cancelled when the user reverses direction.
+ * <pre>
+ * ParseQueryAdapter&lt;ParseObject&gt; adapter = new ParseQueryAdapter&lt;&gt;(this, &quot;Product&quot;);
+ * adapter.setImageKey(&quot;image&quot;);
+ * listView.setAdapter(adapter);
+ * // Prefetch the images of the next 10 rows.
+ * listView.setOnScrollListener(new ParseImagePrefetcher(adapter, 10));
+ * </pre>
+ */
+@SuppressWarnings("deprecation")
+public class ParseImagePrefetcher implements AbsListView.OnScrollListener {
+
+  private final ParseQueryAdapter<? extends ParseObject> adapter;
+  private final int distance;
+  private final AbsListView.OnScrollListener delegate;
+
+  private int direction = 0;
+  // The adapter positions [prefetchStart, prefetchEnd) that have been queued in this direction.
+  private int prefetchStart = -1;
+  private int prefetchEnd = -1;
+  private CancellationTokenSource cts = new CancellationTokenSource();
+
+  private int lastFirstVisibleItem = -1;
+
+  /**
+   * Constructs a {@code ParseImagePrefetcher}.
+   *
+   * @param adapter The adapter whose images should be prefetched.
+   * @param distance The number of rows beyond the visible ones to prefetch.
+   */
+  public ParseImagePrefetcher(ParseQueryAdapter<? extends ParseObject> adapter, int distance) {
+    this(adapter, distance, null);
+  }
+
+  /**
+   * Constructs a {@code ParseImagePrefetcher} that forwards scroll events to another listener.
+   *
+   * @param adapter The adapter whose images should be prefetched.
+   * @param distance The number of rows beyond the visible ones to prefetch.
+   * @param delegate A listener to forward scroll events to, since an {@code AbsListView} only
+   *                 supports a single {@code OnScrollListener}. Can be null.
+   */
+  public ParseImagePrefetcher(ParseQueryAdapter<? extends ParseObject> adapter, int distance,
+      AbsListView.OnScrollListener delegate) {
+    this.adapter = adapter;
+    this.distance = distance;
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void onScrollStateChanged(AbsListView view, int scrollState) {
+    if (delegate != null) {
+      delegate.onScrollStateChanged(view, scrollState);
+    }
+  }
+
+  @Override
+  public void onScroll(
+      AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+    if (delegate != null) {
+      delegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+    if (visibleItemCount == 0 || firstVisibleItem == lastFirstVisibleItem) {
+      return;
+    }
+
+    int newDirection = firstVisibleItem > lastFirstVisibleItem ? 1 : -1;
+    lastFirstVisibleItem = firstVisibleItem;
+    if (newDirection != direction) {
+      cancel();
+      direction = newDirection;
+    }
+
+    int headerCount = view instanceof ListView ? ((ListView) view).getHeaderViewsCount() : 0;
+    int first = firstVisibleItem - headerCount;
+    int start;
+    int end;
+    if (direction > 0) {
+      start = Math.max(first + visibleItemCount, prefetchEnd);
+      // Rows past the loaded objects will be prefetched once their page has loaded.
+      end = Math.min(first + visibleItemCount + distance, adapter.getObjectCount());
+      prefetchEnd = Math.max(prefetchEnd, end);
+      for (int position = start; position < end; position++) {
+        enqueue(position);
+      }
+    } else {
+      start = first - distance;
+      end = prefetchStart >= 0 ? Math.min(first, prefetchStart) : first;
+      prefetchStart = prefetchStart >= 0 ? Math.min(prefetchStart, start) : start;
+      for (int position = end - 1; position >= start; position--) {
+        enqueue(position);
+      }
+    }
+  }
+
+  /**
+   * Cancels all queued prefetches.
+   */
+  public void cancel() {
+    cts.cancel();
+    cts = new CancellationTokenSource();
+    prefetchStart = -1;
+    prefetchEnd = -1;
+  }
+
+  private void enqueue(int position) {
+    if (position < 0 || position >= adapter.getObjectCount()) {
+      return;
+    }
+    String imageKey = adapter.getImageKey();
+    int width = adapter.getImageWidth();
+    int height = adapter.getImageHeight();
+    if (imageKey == null || (width <= 0 && height <= 0)) {
+      // Until a row has been bound we don't know what size to decode the image at.
+      return;
+    }
+    ParseObject object = adapter.getItem(position);
+    if (!object.isDataAvailable(imageKey)) {
+      // An evicted row, there is nothing to prefetch
+      return;
+    }
+    Object value = object.get(imageKey);
+    if (!(value instanceof ParseFile)) {
+      return;
+    }
+
+    ParseImageLoader.getInstance()
+        .prefetchAsync((ParseFile) value, width, height, cts.getToken());
+  }
+}
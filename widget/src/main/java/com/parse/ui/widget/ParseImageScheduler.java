@@ -0,0 +1,206 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the fetches and decodes of {@link ParseImageView} images on a bounded pool of worker
+ * threads, highest {@link Priority} first.
+ * <p>
+ * Images for visible views are loaded before prefetched ones, and views that are detached from
+ * the window drop their loads to the lowest priority. Loads that are cancelled while still queued,
+ * such as those of recycled views, are dropped without using the network or CPU.
+ * <p>
+ * The queue depth and wait time metrics can be used to tune prefetch distances:
+ * <pre>
+ * ParseImageScheduler scheduler = ParseImageScheduler.getInstance();
+ * Log.i(&quot;ParseImageScheduler&quot;, &quot;queued: &quot; + scheduler.getQueueDepth()
+ *     + &quot;, average wait: &quot; + scheduler.getAverageWaitTimeMillis() + &quot;ms&quot;);
+ * </pre>
+ */
+public class ParseImageScheduler {
+
+  /**
+   * The priority classes of image loads, from highest to lowest.
+   */
+  public enum Priority {
+    /**
+     * Images of views that are on screen.
+     */
+    VISIBLE,
+    /**
+     * Images that are expected to be on screen soon.
+     */
+    PREFETCH,
+    /**
+     * Images that nobody is currently waiting on.
+     */
+    BACKGROUND
+  }
+
+  private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+  private static final int POOL_SIZE = Math.max(2, Math.min(CPU_COUNT, 4));
+  private static final long KEEP_ALIVE_TIME = 1L;
+
+  private static final Object MUTEX = new Object();
+  private static ParseImageScheduler instance;
+
+  /**
+   * @return the shared {@code ParseImageScheduler}.
+   */
+  public static ParseImageScheduler getInstance() {
+    synchronized (MUTEX) {
+      if (instance == null) {
+        instance = new ParseImageScheduler(POOL_SIZE);
+      }
+      return instance;
+    }
+  }
+
+  /**
+   * A unit of work queued on a {@link ParseImageScheduler}.
+   */
+  /* package */ class Job implements Runnable, Comparable<Job> {
+    private final Runnable runnable;
+    private final long sequence = sequenceGenerator.incrementAndGet();
+    private final long enqueuedAt = SystemClock.elapsedRealtime();
+    private volatile Priority priority;
+
+    private Job(Priority priority, Runnable runnable) {
+      this.priority = priority;
+      this.runnable = runnable;
+    }
+
+    /**
+     * Moves this job to a different priority class, if it is still queued.
+     */
+    /* package */ void setPriority(Priority priority) {
+      synchronized (this) {
+        if (this.priority == priority || !executor.getQueue().remove(this)) {
+          return;
+        }
+        this.priority = priority;
+        executor.execute(this);
+      }
+    }
+
+    /**
+     * Drops this job, if it is still queued.
+     */
+    /* package */ void cancel() {
+      synchronized (this) {
+        if (executor.getQueue().remove(this)) {
+          droppedCount.incrementAndGet();
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      long waitTime = SystemClock.elapsedRealtime() - enqueuedAt;
+      startedCount.incrementAndGet();
+      totalWaitTime.addAndGet(waitTime);
+      long maxWait;
+      while (waitTime > (maxWait = maxWaitTime.get())) {
+        if (maxWaitTime.compareAndSet(maxWait, waitTime)) {
+          break;
+        }
+      }
+      runnable.run();
+    }
+
+    @Override
+    public int compareTo(Job other) {
+      int result = priority.compareTo(other.priority);
+      if (result != 0) {
+        return result;
+      }
+      // FIFO within a priority class
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong sequenceGenerator = new AtomicLong();
+
+  private final AtomicLong startedCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong totalWaitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+
+  /* package */ ParseImageScheduler(int poolSize) {
+    executor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues {@code runnable} to run once all higher priority work has started.
+   */
+  /* package */ Job schedule(Priority priority, Runnable runnable) {
+    Job job = new Job(priority, runnable);
+    executor.execute(job);
+    return job;
+  }
+
+  /**
+   * @return the number of loads waiting for a worker thread.
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * @return the number of loads that have started running.
+   */
+  public long getStartedCount() {
+    return startedCount.get();
+  }
+
+  /**
+   * @return the number of loads that were dropped while queued because they were cancelled.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * @return the average time, in milliseconds, loads waited in the queue before starting.
+   */
+  public long getAverageWaitTimeMillis() {
+    long started = startedCount.get();
+    return started == 0 ? 0 : totalWaitTime.get() / started;
+  }
+
+  /**
+   * @return the longest time, in milliseconds, a load waited in the queue before starting.
+   */
+  public long getMaxWaitTimeMillis() {
+    return maxWaitTime.get();
+  }
+}
@@ -23,15 +23,18 @@ package com.parse.ui.widget;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.parse.GetDataCallback;
 import com.parse.ParseFile;
 import com.parse.ParseUiUtil;
 
+import java.util.concurrent.CancellationException;
+
+import bolts.CancellationTokenSource;
 import bolts.Continuation;
 import bolts.Task;
 
@@ -61,6 +64,15 @@ public class ParseImageView extends ImageView {
   private ParseFile file;
   private Drawable placeholder;
   private boolean isLoaded = false;
+  // The decoded image we're displaying and hold a ParseBitmapPool reference to.
+  private Bitmap bitmap;
+  private boolean reloadOnAttach = false;
+  private CancellationTokenSource loadCts;
+  private ParseImageLoader.Load load;
+  // The size load was started at.
+  private int loadWidth;
+  private int loadHeight;
+  private boolean isDetached = false;
 
   /**
    * Simple constructor to use when creating a {@code ParseImageView} from code.
@@ -104,8 +116,34 @@ public class ParseImageView extends ImageView {
     // AdapterViews tend to try and avoid calling this, instead preferring to recycle the Views +
     // subviews. This is, however, called when the AdapterView itself is detached, or the Activity
     // is destroyed.
-    if (this.file != null) {
-      this.file.cancel();
+    this.isDetached = true;
+    if (this.load != null && !this.load.getTask().isCompleted()) {
+      // Let the image finish loading into the ParseImageCache, but after everything on screen.
+      // It's handed over to a load of its own, so that it doesn't keep us and our Activity alive,
+      // and it will be displayed from the cache if we're attached again.
+      ParseImageLoader.getInstance().prefetchAsync(file, loadWidth, loadHeight,
+          ParseImageScheduler.Priority.BACKGROUND, null);
+      cancelLoad();
+      this.reloadOnAttach = true;
+    }
+    if (this.bitmap != null) {
+      // Hand the image back to the ParseBitmapPool while we're off screen. It will be reloaded,
+      // usually straight from the ParseImageCache, if we're attached again.
+      unbind();
+      this.reloadOnAttach = true;
+    }
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    this.isDetached = false;
+    if (this.load != null) {
+      this.load.setPriority(ParseImageScheduler.Priority.VISIBLE);
+    }
+    if (this.reloadOnAttach) {
+      this.reloadOnAttach = false;
+      loadBitmapInBackground();
     }
   }
 
@@ -132,22 +170,40 @@ public class ParseImageView extends ImageView {
 
   /**
    * Sets the remote file on Parse's server that stores the image.
+   * <p>
+   * If the image is already in the {@link ParseImageCache} it is displayed immediately, without
+   * showing the placeholder. Setting the file that is already loading or displayed, such as when
+   * an adapter rebinds its rows, keeps its load and image.
    *
    * @param file
    *          The remote file on Parse's server.
    */
   public void setParseFile(ParseFile file) {
-    if (this.file != null) {
-      this.file.cancel();
+    boolean isLoading = load != null && !load.getTask().isCompleted();
+    if (file != null && isSameImage(file, this.file) && (isLoading || bitmap != null)) {
+      // Cancelling would abort the download if we're its only load, just for it to start again.
+      this.file = file;
+      return;
     }
-    this.isLoaded = false;
+    cancelLoad();
     this.file = file;
-    this.setImageDrawable(this.placeholder);
+    this.reloadOnAttach = false;
+    Bitmap cached = file != null
+        ? ParseImageCache.getInstance().get(file.getUrl(), getTargetWidth(), getTargetHeight())
+        : null;
+    if (cached != null) {
+      bind(cached);
+    } else {
+      unbind();
+    }
   }
 
   /**
    * Kick off downloading of remote image. When the download is finished, the image data will be
-   * displayed.
+   * decoded in the background, sampled down to the bounds of this View, and displayed.
+   * <p>
+   * If the decoded image is already in the {@link ParseImageCache} it is displayed immediately
+   * and only the image data is fetched.
    *
    * @return A Task that is resolved when the image data is fetched and this View displays the image.
    */
@@ -157,26 +213,171 @@ public class ParseImageView extends ImageView {
     }
 
     final ParseFile loadingFile = file;
-    return file.getDataInBackground().onSuccessTask(new Continuation<byte[], Task<byte[]>>() {
+    return loadBitmapInBackground().onSuccessTask(new Continuation<Bitmap, Task<byte[]>>() {
       @Override
-      public Task<byte[]> then(Task<byte[]> task) throws Exception {
-        byte[] data = task.getResult();
-        if (file != loadingFile) {
-          // This prevents the very slim chance of the file's download finishing and the callback
-          // triggering just before this ImageView is reused for another ParseObject.
-          return Task.cancelled();
-        }
-        if (data != null) {
-          Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-          if (bitmap != null) {
-            setImageBitmap(bitmap);
-          }
-        }
-        return task;
+      public Task<byte[]> then(Task<Bitmap> task) throws Exception {
+        // The file has already been fetched to display the image, so this is served locally.
+        return loadingFile.getDataInBackground();
+      }
+    });
+  }
+
+  /**
+   * Kick off downloading of remote image. When the download is finished, the image data will be
+   * decoded in the background, sampled down to the bounds of this View, and displayed.
+   * <p>
+   * Unlike {@link #loadInBackground()} this does not hand back the image data, so images that are
+   * already in the {@link ParseImageCache} are displayed without reading the file at all. Views
+   * loading the same file at the same size share a single download and decode.
+   * <p>
+   * The returned {@code Bitmap} belongs to this View and the {@link ParseImageCache}: it is only
+   * valid while this View displays it. Once it's replaced, or this View is detached, it may be
+   * handed to the {@link ParseBitmapPool} and overwritten with another image. Callers that need
+   * to keep it should copy it, such as with {@link Bitmap#copy(Bitmap.Config, boolean)}.
+   *
+   * @return A Task that is resolved with the displayed image when this View displays it.
+   */
+  public Task<Bitmap> loadBitmapInBackground() {
+    if (file == null) {
+      return Task.forResult(null);
+    }
+
+    final ParseFile loadingFile = file;
+    final int reqWidth = getTargetWidth();
+    final int reqHeight = getTargetHeight();
+    Bitmap cached = ParseImageCache.getInstance().get(file.getUrl(), reqWidth, reqHeight);
+    if (cached != null) {
+      if (!isLoaded) {
+        bind(cached);
+      }
+      return Task.forResult(cached);
+    }
+
+    // Make thumbnails from previous sessions available to the loader.
+    ParseImageDiskCache.getInstance(getContext());
+
+    // Start the new load before cancelling any previous one, so a shared load isn't torn down
+    // just to be started again.
+    CancellationTokenSource previousCts = loadCts;
+    loadCts = new CancellationTokenSource();
+    loadWidth = reqWidth;
+    loadHeight = reqHeight;
+    load = ParseImageLoader.getInstance().loadAsync(file, reqWidth, reqHeight,
+        isDetached ? ParseImageScheduler.Priority.BACKGROUND : ParseImageScheduler.Priority.VISIBLE,
+        loadCts.getToken());
+    if (previousCts != null) {
+      previousCts.cancel();
+    }
+    return load.getTask().onSuccess(new Continuation<Bitmap, Bitmap>() {
+      @Override
+      public Bitmap then(Task<Bitmap> task) throws Exception {
+        Bitmap bitmap = task.getResult();
+        displayAndRelease(loadingFile, bitmap);
+        return bitmap;
       }
     }, Task.UI_THREAD_EXECUTOR);
   }
 
+  /**
+   * Cancels this View's load, if any. Loads of the same image by other Views are unaffected.
+   */
+  private void cancelLoad() {
+    if (loadCts != null) {
+      loadCts.cancel();
+      loadCts = null;
+    }
+    load = null;
+  }
+
+  /**
+   * Displays an image loaded by the {@link ParseImageLoader} and releases the reference it holds
+   * on our behalf.
+   */
+  private void displayAndRelease(ParseFile loadingFile, Bitmap bitmap) {
+    try {
+      if (!isSameImage(file, loadingFile)) {
+        // This prevents the very slim chance of the file's download finishing and the callback
+        // triggering just before this ImageView is reused for another ParseObject.
+        throw new CancellationException();
+      }
+      if (bitmap != null && isDetached) {
+        // Don't hold on to it while we're off screen, it's in the ParseImageCache for when we're
+        // attached again.
+        reloadOnAttach = true;
+      } else if (bitmap != null) {
+        bind(bitmap);
+      }
+    } finally {
+      if (bitmap != null) {
+        ParseBitmapPool.getInstance().release(bitmap);
+      }
+    }
+  }
+
+  /**
+   * @return whether {@code a} and {@code b} are the same image, even if they're different
+   * instances, such as after the {@code ParseObject} holding it has been fetched again.
+   */
+  private static boolean isSameImage(ParseFile a, ParseFile b) {
+    if (a == b) {
+      return true;
+    }
+    return a != null && b != null && a.getUrl() != null && a.getUrl().equals(b.getUrl());
+  }
+
+  /**
+   * Displays a decoded image, releasing the one previously displayed to the
+   * {@link ParseBitmapPool}.
+   */
+  private void bind(Bitmap bitmap) {
+    ParseBitmapPool pool = ParseBitmapPool.getInstance();
+    pool.retain(bitmap);
+    Bitmap previous = this.bitmap;
+    this.bitmap = bitmap;
+    setImageBitmap(bitmap);
+    if (previous != null) {
+      pool.release(previous);
+    }
+  }
+
+  /**
+   * Displays the placeholder, releasing the previously displayed image to the
+   * {@link ParseBitmapPool}.
+   */
+  private void unbind() {
+    Bitmap previous = this.bitmap;
+    this.bitmap = null;
+    this.isLoaded = false;
+    setImageDrawable(this.placeholder);
+    if (previous != null) {
+      ParseBitmapPool.getInstance().release(previous);
+    }
+  }
+
+  /**
+   * @return the width the image will be displayed at, or {@code 0} if it is not yet known.
+   */
+  /* package */ int getTargetWidth() {
+    int width = getWidth() - getPaddingLeft() - getPaddingRight();
+    if (width > 0) {
+      return width;
+    }
+    ViewGroup.LayoutParams params = getLayoutParams();
+    return params != null && params.width > 0 ? params.width : 0;
+  }
+
+  /**
+   * @return the height the image will be displayed at, or {@code 0} if it is not yet known.
+   */
+  /* package */ int getTargetHeight() {
+    int height = getHeight() - getPaddingTop() - getPaddingBottom();
+    if (height > 0) {
+      return height;
+    }
+    ViewGroup.LayoutParams params = getLayoutParams();
+    return params != null && params.height > 0 ? params.height : 0;
+  }
+
   /**
    * Kick off downloading of remote image. When the download is finished, the image data will be
    * displayed and the {@code completionCallback} will be triggered.
@@ -0,0 +1,100 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import androidx.recyclerview.widget.DiffUtil;
+
+import com.parse.ParseObject;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Diffs two lists of {@link ParseObject}s, matching objects by {@code objectId} and treating
+ * them as changed when their {@code updatedAt} differs.
+ */
+/* package */ class ParseObjectDiffCallback<T extends ParseObject> extends DiffUtil.Callback {
+
+  /**
+   * @return whether {@code object} is a stub of an evicted page, which has nothing but an
+   * {@code objectId}. Objects fetched with {@link com.parse.ParseQuery#selectKeys} aren't
+   * complete either, but they always have an {@code updatedAt}.
+   */
+  /* package */ static boolean isStub(ParseObject object) {
+    return !object.isDataAvailable() && object.getUpdatedAt() == null;
+  }
+
+  /**
+   * @return whether {@code oldObject} and {@code newObject} should be displayed the same way.
+   */
+  /* package */ static boolean areContentsTheSame(ParseObject oldObject, ParseObject newObject) {
+    if (isStub(oldObject) || isStub(newObject)) {
+      // Stubs of evicted pages only look like other stubs
+      return isStub(oldObject) == isStub(newObject);
+    }
+    Date oldUpdatedAt = oldObject.getUpdatedAt();
+    return oldUpdatedAt != null && oldUpdatedAt.equals(newObject.getUpdatedAt());
+  }
+
+  private final List<T> oldObjects;
+  private final List<T> newObjects;
+
+  /* package */ ParseObjectDiffCallback(List<T> oldObjects, List<T> newObjects) {
+    this.oldObjects = oldObjects;
+    this.newObjects = newObjects;
+  }
+
+  @Override
+  public int getOldListSize() {
+    return oldObjects.size();
+  }
+
+  @Override
+  public int getNewListSize() {
+    return newObjects.size();
+  }
+
+  @Override
+  public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+    T oldObject = oldObjects.get(oldItemPosition);
+    T newObject = newObjects.get(newItemPosition);
+    if (oldObject == newObject) {
+      return true;
+    }
+    String objectId = oldObject.getObjectId();
+    return objectId != null && objectId.equals(newObject.getObjectId());
+  }
+
+  @Override
+  public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+    T oldObject = oldObjects.get(oldItemPosition);
+    T newObject = newObjects.get(newItemPosition);
+    return oldObject == newObject || areObjectContentsTheSame(oldObject, newObject);
+  }
+
+  /**
+   * Called for objects with the same {@code objectId} that aren't the same instance.
+   */
+  /* package */ boolean areObjectContentsTheSame(T oldObject, T newObject) {
+    return areContentsTheSame(oldObject, newObject);
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import com.parse.ParseObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * Collects the pointers that rows fetch while they're bound, and fetches them together once the
+ * bind pass is over: one query per class, constrained by {@code objectId}, rather than one request
+ * per row.
+ *
+ * Only accessed on the UI thread.
+ */
+/* package */ class ParsePointerBatcher {
+
+  /**
+   * Called once the pointers of a bind pass have been fetched, if any of them were.
+   */
+  /* package */ interface OnBatchFetchedListener {
+    void onBatchFetched();
+  }
+
+  /**
+   * The pointers of one class that are fetched together.
+   */
+  private static class Batch {
+    private final List<ParseObject> pointers = new ArrayList<>();
+    private final TaskCompletionSource<Void> tcs = new TaskCompletionSource<>();
+  }
+
+  private final OnBatchFetchedListener listener;
+  // The batches of the current bind pass by class name, and the batch of every pointer that is
+  // being fetched.
+  private final Map<String, Batch> pendingBatches = new HashMap<>();
+  private final Map<ParseObject, Task<Void>> requests = new IdentityHashMap<>();
+
+  /* package */ ParsePointerBatcher(OnBatchFetchedListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @return whether {@code pointer} is waiting for a batch that hasn't finished yet.
+   */
+  /* package */ boolean isFetching(ParseObject pointer) {
+    return requests.containsKey(pointer);
+  }
+
+  /**
+   * Fetches {@code pointer} with the other pointers of its class requested in this bind pass,
+   * unless it already has data.
+   *
+   * @return A {@link Task} that resolves to {@code pointer} once it has data.
+   */
+  /* package */ <P extends ParseObject> Task<P> fetchIfNeededAsync(final P pointer) {
+    if (pointer.isDataAvailable()) {
+      return Task.forResult(pointer);
+    }
+    Task<Void> task = requests.get(pointer);
+    if (task == null) {
+      if (pendingBatches.isEmpty()) {
+        // Posted behind the rest of the bind pass
+        Task.call(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            fetchPendingBatches();
+            return null;
+          }
+        }, Task.UI_THREAD_EXECUTOR);
+      }
+      Batch batch = pendingBatches.get(pointer.getClassName());
+      if (batch == null) {
+        batch = new Batch();
+        pendingBatches.put(pointer.getClassName(), batch);
+      }
+      batch.pointers.add(pointer);
+      task = batch.tcs.getTask();
+      requests.put(pointer, task);
+    }
+    return task.onSuccess(new Continuation<Void, P>() {
+      @Override
+      public P then(Task<Void> task) throws Exception {
+        return pointer;
+      }
+    });
+  }
+
+  private void fetchPendingBatches() {
+    final List<Batch> batches = new ArrayList<>(pendingBatches.values());
+    pendingBatches.clear();
+    List<Task<Void>> tasks = new ArrayList<>();
+    for (final Batch batch : batches) {
+      // Fetches objects of the same class with a single objectId query, and merges the results
+      // into them.
+      tasks.add(ParseObject.fetchAllIfNeededInBackground(batch.pointers).continueWith(
+          new Continuation<List<ParseObject>, Void>() {
+            @Override
+            public Void then(Task<List<ParseObject>> task) throws Exception {
+              for (ParseObject pointer : batch.pointers) {
+                requests.remove(pointer);
+              }
+              if (task.isCancelled()) {
+                batch.tcs.setCancelled();
+              } else if (task.isFaulted()) {
+                batch.tcs.setError(task.getError());
+              } else {
+                batch.tcs.setResult(null);
+              }
+              return null;
+            }
+          }, Task.UI_THREAD_EXECUTOR));
+    }
+    // Rows are rebound once for the whole pass, rather than once per class.
+    Task.whenAll(tasks).continueWith(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        for (Batch batch : batches) {
+          Task<Void> batchTask = batch.tcs.getTask();
+          if (!batchTask.isCancelled() && !batchTask.isFaulted()) {
+            listener.onBatchFetched();
+            break;
+          }
+        }
+        return null;
+      }
+    }, Task.UI_THREAD_EXECUTOR);
+  }
+}
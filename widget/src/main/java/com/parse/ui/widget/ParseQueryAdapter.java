@@ -24,6 +24,8 @@ package com.parse.ui.widget;
 import android.content.Context;
 import android.database.DataSetObserver;
 import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.os.Looper;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
@@ -32,19 +34,31 @@ import android.widget.BaseAdapter;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import androidx.asynclayoutinflater.view.AsyncLayoutInflater;
+
 import com.parse.FindCallback;
 import com.parse.Parse;
 import com.parse.ParseException;
 import com.parse.ParseFile;
 import com.parse.ParseObject;
 import com.parse.ParseQuery;
+import com.parse.widget.R;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.WeakHashMap;
 
 import bolts.CancellationTokenSource;
+import bolts.Continuation;
+import bolts.Task;
 
 /**
  * Since ListView is all but deprecated, this class in turn is deprecated. You should consider a RecyclerView instead.
@@ -118,6 +132,52 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
         void onLoaded(List<T> objects, Exception e);
     }
 
+    /**
+     * Holds the views of a row, so that they're only looked up when the row view is created.
+     * Subclass it and override {@link ParseQueryAdapter#onCreateViewHolder(View)} to hold the views
+     * of custom row layouts.
+     */
+    public static class ViewHolder {
+        private final View itemView;
+        private final TextView textView;
+        private final ParseImageView imageView;
+
+        public ViewHolder(View itemView) {
+            this.itemView = itemView;
+
+            View textView = itemView.findViewById(android.R.id.text1);
+            if (textView != null && !(textView instanceof TextView)) {
+                throw new IllegalStateException(
+                        "Your object views must have a TextView whose id attribute is 'android.R.id.text1'");
+            }
+            this.textView = (TextView) textView;
+
+            View imageView = itemView.findViewById(android.R.id.icon);
+            this.imageView = imageView instanceof ParseImageView ? (ParseImageView) imageView : null;
+        }
+
+        /**
+         * @return the row view.
+         */
+        public View getItemView() {
+            return itemView;
+        }
+
+        /**
+         * @return the {@code TextView} with id {@code android.R.id.text1}, or {@code null}.
+         */
+        public TextView getTextView() {
+            return textView;
+        }
+
+        /**
+         * @return the {@link ParseImageView} with id {@code android.R.id.icon}, or {@code null}.
+         */
+        public ParseImageView getImageView() {
+            return imageView;
+        }
+    }
+
     private final Object lock = new Object();
     private ParseQueryPager<T> pager;
     private CancellationTokenSource cts;
@@ -127,14 +187,56 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
     private int objectsPerPage = 25;
     //endregion
 
+    private int prefetchDistance = 0;
+    private int maxLoadedPages = 0;
+
+    // Whether rows are displayed for objects that haven't been loaded yet, once they're counted.
+    private boolean placeholdersEnabled = false;
+
+    // Whether loadObjects() should refresh the loaded objects in place instead of clearing them.
+    private boolean refreshInPlace = false;
+    // A pager restored from a snapshot that hasn't been refreshed yet, which loadObjects()
+    // refreshes in place.
+    private ParseQueryPager<T> restoredPager;
+
     private Integer itemResourceId;
 
+    // Row views of itemResourceId inflated ahead of time, and how many more are being inflated.
+    // Only accessed on the UI thread.
+    private int preinflatedViewCount = 0;
+    private final ArrayDeque<View> preinflatedViews = new ArrayDeque<>();
+    private int pendingInflations = 0;
+    private AsyncLayoutInflater asyncInflater;
+    private AsyncLayoutInflater.OnInflateFinishedListener inflateFinishedListener;
+
     // The key to use to display on the cell text label.
     private String textKey;
 
     // The key to use to fetch an image for display in the cell's image view.
     private String imageKey;
 
+    // Whether queries only fetch the keys returned by getSelectedKeys().
+    private boolean fieldProjectionEnabled = false;
+
+    // Fetches the pointers requested while binding rows together, and rebinds the rows once
+    // they're fetched.
+    private final ParsePointerBatcher pointerBatcher = new ParsePointerBatcher(
+            new ParsePointerBatcher.OnBatchFetchedListener() {
+                @Override
+                public void onBatchFetched() {
+                    notifyDataSetChanged();
+                }
+            });
+
+    // How many pointers of each key had to be fetched while binding rows, if diagnostics are
+    // enabled. Only accessed on the UI thread.
+    private boolean includeDiagnosticsEnabled = false;
+    private final Map<String, Integer> pointerFetchCounts = new HashMap<>();
+
+    // The size of the most recently bound ParseImageView, used when prefetching images.
+    private int imageWidth;
+    private int imageHeight;
+
     // Whether the table should use the built-in pagination feature (default:
     // true)
     private boolean paginationEnabled = true;
@@ -161,6 +263,17 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
 
     private static final int VIEW_TYPE_ITEM = 0;
     private static final int VIEW_TYPE_NEXT_PAGE = 1;
+    private static final int VIEW_TYPE_PLACEHOLDER = 2;
+
+    // How many pages are requested at a time when scrolling to placeholders.
+    private static final int MAX_CONCURRENT_PAGE_REQUESTS = 4;
+
+    // AsyncLayoutInflater's queue only holds this many requests, and queueing more blocks the UI
+    // thread until one is taken.
+    private static final int MAX_PENDING_INFLATIONS = 10;
+
+    // Item ids of objects are never negative
+    private static final long NEXT_PAGE_ITEM_ID = -1;
 
     /**
      * Constructs a {@code ParseQueryAdapter}. Given a {@link ParseObject} subclass, this adapter will
@@ -259,9 +372,56 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
                         if (paginationEnabled) {
                             setPageOnQuery(page, query);
                         }
+                        selectKeysIfNeeded(query);
+                        return query;
+                    }
+
+                    @Override
+                    /* package */ ParseQuery<T> createReloadQuery() {
+                        ParseQuery<T> query = super.createReloadQuery();
+                        selectKeysIfNeeded(query);
                         return query;
                     }
                 };
+                pager.setPrefetchDistance(prefetchDistance);
+                pager.setMaxLoadedPages(maxLoadedPages);
+                pager.setCountEnabled(placeholdersEnabled);
+                pager.addOnObjectsChangedCallback(new ParseQueryPager.OnObjectsChangedCallback() {
+                    @Override
+                    public void onChanged(ParseQueryPager sender) {
+                        // The objects were counted
+                        if (placeholdersEnabled) {
+                            notifyDataSetChanged();
+                        }
+                    }
+
+                    @Override
+                    public void onItemRangeChanged(ParseQueryPager sender, int positionStart,
+                            int itemCount) {
+                        // Pages were evicted or reloaded
+                        if (maxLoadedPages > 0) {
+                            notifyDataSetChanged();
+                        }
+                    }
+
+                    @Override
+                    public void onItemRangeInserted(ParseQueryPager sender, int positionStart,
+                            int itemCount) {
+                        // do nothing, we're notified through loadNextPage
+                    }
+
+                    @Override
+                    public void onItemRangeMoved(ParseQueryPager sender, int fromPosition,
+                            int toPosition, int itemCount) {
+                        // do nothing
+                    }
+
+                    @Override
+                    public void onItemRangeRemoved(ParseQueryPager sender, int positionStart,
+                            int itemCount) {
+                        // do nothing
+                    }
+                });
                 cts = new CancellationTokenSource();
             }
 
@@ -273,36 +433,56 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
         return getPager().getObjects();
     }
 
+    /* package */ int getObjectCount() {
+        return getObjects().size();
+    }
+
     /**
      * {@inheritDoc}
      **/
     @Override
     public T getItem(int index) {
-        if (index == getPaginationCellRow()) {
+        List<T> objects = getObjects();
+        if (index >= objects.size()) {
+            // The pagination cell or a placeholder
             return null;
         }
-        return getObjects().get(index);
+        return objects.get(index);
     }
 
     /**
-     * {@inheritDoc}
+     * Returns an id derived from the {@code objectId} of the object at {@code position}, which stays
+     * the same across pages and calls to {@link #loadObjects()}.
+     *
+     * @see ParseQueryPager#getItemId(ParseObject)
      **/
     @Override
     public long getItemId(int position) {
-        return position;
+        if (getItemViewType(position) == VIEW_TYPE_NEXT_PAGE) {
+            return NEXT_PAGE_ITEM_ID;
+        }
+        if (getItemViewType(position) == VIEW_TYPE_PLACEHOLDER) {
+            return NEXT_PAGE_ITEM_ID - 1 - position;
+        }
+        return getPager().getItemId(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     @Override
     public int getItemViewType(int position) {
-        if (position == getPaginationCellRow()) {
-            return VIEW_TYPE_NEXT_PAGE;
+        if (position >= getObjects().size()) {
+            return shouldShowPlaceholders() ? VIEW_TYPE_PLACEHOLDER : VIEW_TYPE_NEXT_PAGE;
         }
         return VIEW_TYPE_ITEM;
     }
 
     @Override
     public int getViewTypeCount() {
-        return 2;
+        return 3;
     }
 
     @Override
@@ -329,6 +509,7 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
                 cts.cancel();
             }
             pager = null;
+            restoredPager = null;
             cts = null;
         }
 
@@ -347,13 +528,34 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
     }
 
     private void loadNextPage(final boolean shouldClear) {
+        final ParseQueryPager<T> refreshPager;
         synchronized (lock) {
+            refreshPager = shouldClear && (refreshInPlace || pager == restoredPager)
+                    && pager != null && pager.getCurrentPage() >= 0 ? pager : null;
+            if (shouldClear) {
+                // Only the first load after restoring has to reconcile the snapshot
+                restoredPager = null;
+            }
             if (shouldClear && pager != null) {
                 cts.cancel();
-                pager = null;
+                if (refreshPager != null) {
+                    // Keep the pager, but drop any page that's still loading
+                    cts = new CancellationTokenSource();
+                } else {
+                    pager = null;
+                }
             }
         }
 
+        if (refreshPager != null) {
+            refreshObjects(refreshPager);
+            return;
+        }
+
+        if (shouldClear) {
+            preinflateViews();
+        }
+
         notifyOnLoadingListeners();
 
         getPager().loadNextPage(new FindCallback<T>() {
@@ -378,6 +580,87 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
         }, cts.getToken());
     }
 
+    private void refreshObjects(ParseQueryPager<T> pager) {
+        notifyOnLoadingListeners();
+
+        pager.refresh(cts.getToken()).continueWith(new Continuation<List<T>, Void>() {
+            @Override
+            public Void then(Task<List<T>> task) throws Exception {
+                if (task.isCancelled()) {
+                    return null;
+                }
+
+                Exception error = task.getError();
+                ParseException e = error == null || error instanceof ParseException
+                        ? (ParseException) error
+                        : new ParseException(error);
+                if (e == null) {
+                    notifyDataSetChanged();
+                }
+
+                notifyOnLoadedListeners(task.getResult(), e);
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Saves the loaded objects and scroll position to {@code outState}, for example from
+     * {@link android.app.Activity#onSaveInstanceState(Bundle)}, so that they can be shown again
+     * immediately with {@link #restoreInstanceState(Bundle)} after the process is killed.
+     * <p/>
+     * Use a separate {@code Bundle} for each adapter.
+     *
+     * @param outState The bundle to save to.
+     * @see ParseQueryPager#saveState(Bundle)
+     */
+    public void saveInstanceState(Bundle outState) {
+        synchronized (lock) {
+            if (pager != null) {
+                pager.saveState(outState);
+            }
+        }
+    }
+
+    /**
+     * Restores the objects saved with {@link #saveInstanceState(Bundle)} and displays them, then
+     * refreshes them in place in the background, rather than loading them again from the first
+     * page. Use {@link #getAnchorPosition()} to scroll back to where the user was.
+     *
+     * @param savedInstanceState The bundle that was saved to, or {@code null}.
+     */
+    public void restoreInstanceState(Bundle savedInstanceState) {
+        if (!ParseQueryPager.hasSavedState(savedInstanceState)) {
+            // Nothing was saved, such as on first launch, so keep what we're displaying
+            return;
+        }
+        ParseQueryPager<T> pager;
+        boolean shouldRefresh;
+        synchronized (lock) {
+            if (cts != null) {
+                cts.cancel();
+            }
+            this.pager = null;
+            pager = getPager();
+            boolean isRestored = pager.restoreState(savedInstanceState);
+            shouldRefresh = isRestored && !dataSetObservers.isEmpty();
+            restoredPager = isRestored && !shouldRefresh ? pager : null;
+        }
+
+        notifyDataSetChanged();
+        if (shouldRefresh) {
+            refreshObjects(pager);
+        }
+        // Otherwise autoload or loadObjects() will refresh it once we're attached
+    }
+
+    /**
+     * @return the position of the row that was last displayed.
+     */
+    public int getAnchorPosition() {
+        return getPager().getAnchorPosition();
+    }
+
     /**
      * Loads the next page of objects, appends to table, and notifies the UI that the model has
      * changed.
@@ -395,6 +678,10 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
      */
     @Override
     public int getCount() {
+        if (shouldShowPlaceholders()) {
+            return getPager().getTotalCount();
+        }
+
         int count = getObjects().size();
 
         if (shouldShowPaginationCell()) {
@@ -430,18 +717,15 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
             v = getDefaultView(parent.getContext());
         }
 
-        TextView textView;
-        try {
-            textView = v.findViewById(android.R.id.text1);
-        } catch (ClassCastException ex) {
-            throw new IllegalStateException(
-                    "Your object views must have a TextView whose id attribute is 'android.R.id.text1'", ex);
-        }
+        ViewHolder holder = getViewHolder(v);
+        TextView textView = holder.getTextView();
 
+        // Keys are checked one at a time, since a stub of an evicted page has no data, which will
+        // be rebound once it's reloaded, and projected objects only have the selected keys.
         if (textView != null) {
             if (textKey == null) {
                 textView.setText(object.getObjectId());
-            } else if (object.get(textKey) != null) {
+            } else if (object.isDataAvailable(textKey) && object.get(textKey) != null) {
                 textView.setText(object.get(textKey).toString());
             } else {
                 textView.setText(null);
@@ -449,29 +733,59 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
         }
 
         if (imageKey != null) {
-            ParseImageView imageView;
-            try {
-                imageView = v.findViewById(android.R.id.icon);
-            } catch (ClassCastException ex) {
-                throw new IllegalStateException(
-                        "Your object views must have a ParseImageView whose id attribute is 'android.R.id.icon'",
-                        ex);
-            }
+            ParseImageView imageView = holder.getImageView();
             if (imageView == null) {
                 throw new IllegalStateException(
                         "Your object views must have a ParseImageView whose id attribute is 'android.R.id.icon' if an imageKey is specified");
             }
-            if (!imageViewSet.containsKey(imageView)) {
-                imageViewSet.put(imageView, null);
+            if (imageView.getTargetWidth() > 0 || imageView.getTargetHeight() > 0) {
+                // Remember the size our images are displayed at, so they can be prefetched.
+                imageWidth = imageView.getTargetWidth();
+                imageHeight = imageView.getTargetHeight();
             }
             imageView.setPlaceholder(placeholder);
-            imageView.setParseFile((ParseFile) object.get(imageKey));
-            imageView.loadInBackground();
+            // Binds synchronously if the image is already in the ParseImageCache.
+            imageView.setParseFile(
+                    object.isDataAvailable(imageKey) ? (ParseFile) object.get(imageKey) : null);
+            imageView.loadBitmapInBackground();
         }
 
         return v;
     }
 
+    /**
+     * Returns the {@link ViewHolder} of a row view, creating it with
+     * {@link #onCreateViewHolder(View)} the first time the view is bound. Subclasses that override
+     * {@link #getItemView(ParseObject, View, ViewGroup)} can use it to look up their views once per
+     * inflated view, rather than on every bind.
+     *
+     * @param v The row view.
+     * @return The {@link ViewHolder} of {@code v}.
+     */
+    protected ViewHolder getViewHolder(View v) {
+        ViewHolder holder = (ViewHolder) v.getTag(R.id.parse_query_adapter_view_holder);
+        if (holder == null) {
+            holder = onCreateViewHolder(v);
+            v.setTag(R.id.parse_query_adapter_view_holder, holder);
+            ParseImageView imageView = holder.getImageView();
+            if (imageView != null) {
+                imageViewSet.put(imageView, null);
+            }
+        }
+        return holder;
+    }
+
+    /**
+     * Override this method to return a subclass of {@link ViewHolder} that looks up the views of
+     * your custom row layouts. It's called once for each row view.
+     *
+     * @param v The row view.
+     * @return A new {@link ViewHolder} for {@code v}.
+     */
+    protected ViewHolder onCreateViewHolder(View v) {
+        return new ViewHolder(v);
+    }
+
     /**
      * Override this method to customize the "Load Next Page" cell, visible when pagination is turned
      * on and there may be more results to display.
@@ -487,11 +801,40 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
         if (v == null) {
             v = getDefaultView(parent.getContext());
         }
-        TextView textView = v.findViewById(android.R.id.text1);
+        TextView textView = getViewHolder(v).getTextView();
         textView.setText("Load more...");
         return v;
     }
 
+    /**
+     * Override this method to customize the rows of objects that haven't been loaded yet, visible
+     * when placeholders are enabled with {@link #setPlaceholdersEnabled(boolean)}. The page of the
+     * row is loaded when it's displayed, and the row is then replaced with
+     * {@link #getItemView(ParseObject, View, ViewGroup)}.
+     * <p/>
+     * By default this is an item view without text or image.
+     *
+     * @param v      The view object associated with this row + type (a "Placeholder" view, instead
+     *               of an "Item" view).
+     * @param parent The parent that this view will eventually be attached to
+     * @return The placeholder view.
+     */
+    public View getPlaceholderView(View v, ViewGroup parent) {
+        if (v == null) {
+            v = getDefaultView(parent.getContext());
+        }
+        ViewHolder holder = getViewHolder(v);
+        if (holder.getTextView() != null) {
+            holder.getTextView().setText(null);
+        }
+        ParseImageView imageView = holder.getImageView();
+        if (imageView != null) {
+            imageView.setPlaceholder(placeholder);
+            imageView.setParseFile(null);
+        }
+        return v;
+    }
+
     /**
      * The base class, {@code Adapter}, defines a {@code getView} method intended to display data at
      * the specified position in the data set. We override it here in order to toggle between
@@ -511,6 +854,13 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
             });
             return nextPageView;
         }
+        if (getItemViewType(position) == VIEW_TYPE_PLACEHOLDER) {
+            loadPagesThrough(position);
+            return getPlaceholderView(convertView, parent);
+        }
+        if (paginationEnabled) {
+            getPager().prefetchIfNeeded(position);
+        }
         return getItemView(getItem(position), convertView, parent);
     }
 
@@ -538,6 +888,18 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
         this.imageKey = imageKey;
     }
 
+    /* package */ String getImageKey() {
+        return imageKey;
+    }
+
+    /* package */ int getImageWidth() {
+        return imageWidth;
+    }
+
+    /* package */ int getImageHeight() {
+        return imageHeight;
+    }
+
     public void setObjectsPerPage(int objectsPerPage) {
         this.objectsPerPage = objectsPerPage;
     }
@@ -546,6 +908,262 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
         return objectsPerPage;
     }
 
+    /**
+     * Sets how close to the end of the loaded objects the user has to scroll before the next page
+     * is fetched in the background, so that tapping the "Load more..." cell doesn't wait on the
+     * network. Defaults to 0, which disables prefetching.
+     *
+     * @param prefetchDistance The number of rows from the end of the loaded objects.
+     */
+    public void setPrefetchDistance(int prefetchDistance) {
+        synchronized (lock) {
+            this.prefetchDistance = prefetchDistance;
+            if (pager != null) {
+                pager.setPrefetchDistance(prefetchDistance);
+            }
+        }
+    }
+
+    public int getPrefetchDistance() {
+        return prefetchDistance;
+    }
+
+    /**
+     * Limits how many pages of objects are held in memory during long scrolling sessions. Rows of
+     * pages that are scrolled far away from are reduced to stubs without data, which
+     * {@link #getItemView(ParseObject, View, ViewGroup)} displays as empty rows, and are reloaded
+     * when they're scrolled back to. Defaults to 0, which holds every loaded page.
+     * <p/>
+     * Subclasses that override {@code getItemView} should check
+     * {@link ParseObject#isDataAvailable(String)} before reading from the object.
+     *
+     * @param maxLoadedPages The maximum number of pages to hold, or 0 for no limit.
+     */
+    public void setMaxLoadedPages(int maxLoadedPages) {
+        synchronized (lock) {
+            this.maxLoadedPages = maxLoadedPages;
+            if (pager != null) {
+                pager.setMaxLoadedPages(maxLoadedPages);
+            }
+        }
+    }
+
+    public int getMaxLoadedPages() {
+        return maxLoadedPages;
+    }
+
+    /**
+     * Sets how many row views of the item layout are inflated on a background thread when
+     * {@link #loadObjects()} is called, so that the first rows are bound without inflating complex
+     * layouts on the UI thread while the results load. Layouts that can't be inflated in the
+     * background are inflated on the UI thread instead. Has no effect unless an item layout resource
+     * was passed to the constructor. Defaults to 0, which disables pre-inflation.
+     * <p/>
+     * This should be about the number of rows visible at once. Views are only pre-inflated when
+     * {@code loadObjects()} is called on the UI thread, and replaced in the background as rows use
+     * them.
+     *
+     * @param preinflatedViewCount The number of row views to pre-inflate.
+     */
+    public void setPreinflatedViewCount(int preinflatedViewCount) {
+        this.preinflatedViewCount = preinflatedViewCount;
+        while (preinflatedViews.size() > preinflatedViewCount) {
+            preinflatedViews.poll();
+        }
+    }
+
+    public int getPreinflatedViewCount() {
+        return preinflatedViewCount;
+    }
+
+    /**
+     * Sets whether rows are displayed for every object the query matches, rather than only the
+     * loaded ones followed by a "Load more..." cell. The objects are counted in parallel with the
+     * first page, after which the list has its full length, so the scrollbar doesn't jump and the
+     * user can scroll straight to any position. Rows that haven't been loaded are displayed with
+     * {@link #getPlaceholderView(View, ViewGroup)}, and the pages up to them are loaded in parallel
+     * when they're displayed. Defaults to false.
+     * <p/>
+     * Counting can be slow on large classes, see {@link ParseQuery#countInBackground()}.
+     *
+     * @param placeholdersEnabled Whether to display placeholder rows.
+     */
+    public void setPlaceholdersEnabled(boolean placeholdersEnabled) {
+        synchronized (lock) {
+            this.placeholdersEnabled = placeholdersEnabled;
+            if (pager != null) {
+                pager.setCountEnabled(placeholdersEnabled);
+            }
+        }
+    }
+
+    public boolean isPlaceholdersEnabled() {
+        return placeholdersEnabled;
+    }
+
+    /**
+     * Sets whether {@link #loadObjects()} refreshes the objects that are already loaded in place,
+     * rather than clearing the table and loading it again from the first page. The loaded pages
+     * are fetched again in one request and diffed against the displayed objects in the background,
+     * so the table doesn't empty and refill, and only the objects that changed are replaced.
+     * Defaults to false.
+     *
+     * @param refreshInPlace Whether to refresh in place.
+     * @see ParseQueryPager#refresh(bolts.CancellationToken)
+     */
+    public void setRefreshInPlace(boolean refreshInPlace) {
+        this.refreshInPlace = refreshInPlace;
+    }
+
+    public boolean isRefreshingInPlace() {
+        return refreshInPlace;
+    }
+
+    /**
+     * Sets whether queries only fetch the keys that rows are bound from, as returned by
+     * {@link #getSelectedKeys()}, rather than every key of the objects. This cuts the size of each
+     * page when objects have large keys that aren't displayed. Defaults to false.
+     * <p/>
+     * The objects of the adapter are then incomplete: keys that weren't selected aren't available
+     * until the object is fetched, see {@link #fetchItemInBackground(int)}. Subclasses that override
+     * {@link #getItemView(ParseObject, View, ViewGroup)} to display other keys should override
+     * {@code getSelectedKeys()} to add them.
+     *
+     * @param fieldProjectionEnabled Whether to only fetch the selected keys.
+     * @see ParseQuery#selectKeys(Collection)
+     */
+    public void setFieldProjectionEnabled(boolean fieldProjectionEnabled) {
+        this.fieldProjectionEnabled = fieldProjectionEnabled;
+    }
+
+    public boolean isFieldProjectionEnabled() {
+        return fieldProjectionEnabled;
+    }
+
+    /**
+     * Returns the keys that rows are bound from, which are the only keys fetched if field
+     * projection is enabled. By default these are the text and image keys. The
+     * {@code objectId}, {@code createdAt} and {@code updatedAt} of objects are always fetched.
+     *
+     * @return The keys to fetch.
+     * @see #setFieldProjectionEnabled(boolean)
+     */
+    protected Collection<String> getSelectedKeys() {
+        Collection<String> keys = new HashSet<>();
+        if (textKey != null) {
+            keys.add(textKey);
+        }
+        if (imageKey != null) {
+            keys.add(imageKey);
+        }
+        return keys;
+    }
+
+    /**
+     * Fetches every key of the object at {@code index}, such as when it's opened. The keys it
+     * already has can be displayed while it's fetched, and objects that were fetched recently are
+     * returned without fetching them again.
+     *
+     * @param index The position of the object.
+     * @return A {@link Task} that resolves to the complete object.
+     * @see #setFieldProjectionEnabled(boolean)
+     * @see ParseQueryPager#hydrate(int)
+     */
+    public Task<T> fetchItemInBackground(int index) {
+        return getPager().hydrate(index);
+    }
+
+    /**
+     * Fetches the object that {@code key} of {@code object} points to, such as the author of a
+     * post, unless it already has data. Rather than making a request per row, the pointers
+     * requested while rows are bound are fetched together once the bind pass is over, with one
+     * query per class, and the rows are then bound again. So a
+     * {@link #getItemView(ParseObject, View, ViewGroup)} override can simply display the pointer
+     * if it has data, and call this otherwise:
+     * <pre>
+     * ParseObject author = post.getParseObject(&quot;author&quot;);
+     * if (author.isDataAvailable()) {
+     *   authorView.setText(author.getString(&quot;name&quot;));
+     * } else {
+     *   authorView.setText(null);
+     *   fetchPointerInBackground(post, &quot;author&quot;);
+     * }
+     * </pre>
+     * Must be called on the UI thread. Including the key in the query avoids these fetches
+     * altogether, see {@link #setIncludeDiagnosticsEnabled(boolean)}.
+     *
+     * @param object The object of the row being bound.
+     * @param key The key of the pointer.
+     * @return A {@link Task} that resolves to the object {@code key} points to once it has data,
+     * or {@code null} if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    protected <P extends ParseObject> Task<P> fetchPointerInBackground(T object, String key) {
+        if (!object.isDataAvailable(key)) {
+            // A stub of an evicted page, or a key that wasn't selected
+            return Task.forResult(null);
+        }
+        P pointer = (P) object.getParseObject(key);
+        if (pointer == null) {
+            return Task.forResult(null);
+        }
+        if (includeDiagnosticsEnabled && !pointer.isDataAvailable()
+                && !pointerBatcher.isFetching(pointer)) {
+            // Only counted once per fetch, however often its row is bound while it's fetched
+            Integer count = pointerFetchCounts.get(key);
+            pointerFetchCounts.put(key, count == null ? 1 : count + 1);
+        }
+        return pointerBatcher.fetchIfNeededAsync(pointer);
+    }
+
+    /**
+     * Sets whether the keys of pointers fetched with {@link #fetchPointerInBackground} are
+     * recorded, so that {@link #getSuggestedIncludeKeys()} can tell which keys the query should
+     * include. Defaults to false.
+     *
+     * @param includeDiagnosticsEnabled Whether to record the keys of fetched pointers.
+     */
+    public void setIncludeDiagnosticsEnabled(boolean includeDiagnosticsEnabled) {
+        this.includeDiagnosticsEnabled = includeDiagnosticsEnabled;
+        if (!includeDiagnosticsEnabled) {
+            pointerFetchCounts.clear();
+        }
+    }
+
+    public boolean isIncludeDiagnosticsEnabled() {
+        return includeDiagnosticsEnabled;
+    }
+
+    /**
+     * Returns the keys whose pointers had to be fetched while binding rows since diagnostics were
+     * enabled, the most fetched first. Passing them to {@link ParseQuery#include(String)} fetches
+     * the pointers with each page instead:
+     * <pre>
+     * adapter.setIncludeDiagnosticsEnabled(true);
+     * // ...after scrolling through some rows
+     * Log.i(&quot;ParseQueryAdapter&quot;, &quot;include: &quot; + adapter.getSuggestedIncludeKeys());
+     * </pre>
+     *
+     * @return The keys the query should include.
+     * @see #setIncludeDiagnosticsEnabled(boolean)
+     */
+    public List<String> getSuggestedIncludeKeys() {
+        List<String> keys = new ArrayList<>(pointerFetchCounts.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return pointerFetchCounts.get(rhs).compareTo(pointerFetchCounts.get(lhs));
+            }
+        });
+        return keys;
+    }
+
+    private void selectKeysIfNeeded(ParseQuery<T> query) {
+        if (fieldProjectionEnabled) {
+            query.selectKeys(getSelectedKeys());
+        }
+    }
+
     /**
      * Enable or disable pagination of results. Defaults to true.
      *
@@ -607,6 +1225,11 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
 
     private View getDefaultView(Context context) {
         if (itemResourceId != null) {
+            View preinflated = preinflatedViews.poll();
+            if (preinflated != null) {
+                preinflateViews();
+                return preinflated;
+            }
             return View.inflate(context, itemResourceId, null);
         }
         LinearLayout view = new LinearLayout(context);
@@ -627,8 +1250,77 @@ public class ParseQueryAdapter<T extends ParseObject> extends BaseAdapter {
         return view;
     }
 
-    private int getPaginationCellRow() {
-        return getObjects().size();
+    /**
+     * Starts inflating row views in the background until there are
+     * {@code preinflatedViewCount} of them, at most {@link #MAX_PENDING_INFLATIONS} at a time.
+     */
+    private void preinflateViews() {
+        if (itemResourceId == null || Looper.myLooper() != Looper.getMainLooper()) {
+            // The pool is only used on the UI thread
+            return;
+        }
+        int count = Math.min(
+                preinflatedViewCount - preinflatedViews.size() - pendingInflations,
+                MAX_PENDING_INFLATIONS - pendingInflations);
+        if (count <= 0) {
+            return;
+        }
+        if (asyncInflater == null) {
+            asyncInflater = new AsyncLayoutInflater(context);
+            inflateFinishedListener = new AsyncLayoutInflater.OnInflateFinishedListener() {
+                @Override
+                public void onInflateFinished(View view, int resid, ViewGroup parent) {
+                    pendingInflations--;
+                    if (preinflatedViews.size() < preinflatedViewCount) {
+                        preinflatedViews.add(view);
+                    }
+                    // Queue the rest of the views that didn't fit in the first burst
+                    preinflateViews();
+                }
+            };
+        }
+        for (int i = 0; i < count; i++) {
+            pendingInflations++;
+            asyncInflater.inflate(itemResourceId, null, inflateFinishedListener);
+        }
+    }
+
+    /**
+     * Loads the pages up to the one containing {@code position}, several at a time.
+     */
+    private void loadPagesThrough(int position) {
+        ParseQueryPager<T> pager = getPager();
+        if (pager.isLoadingNextPage() || !pager.hasNextPage()) {
+            return;
+        }
+        int pageCount = position / objectsPerPage - pager.getCurrentPage();
+        if (pageCount <= 0) {
+            return;
+        }
+
+        notifyOnLoadingListeners();
+        pager.loadPages(pageCount, MAX_CONCURRENT_PAGE_REQUESTS, cts.getToken())
+                .continueWith(new Continuation<List<T>, Void>() {
+                    @Override
+                    public Void then(Task<List<T>> task) throws Exception {
+                        if (task.isCancelled()) {
+                            return null;
+                        }
+
+                        Exception error = task.getError();
+                        ParseException e = error == null || error instanceof ParseException
+                                ? (ParseException) error
+                                : new ParseException(error);
+                        notifyDataSetChanged();
+
+                        notifyOnLoadedListeners(task.getResult(), e);
+                        return null;
+                    }
+                }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    private boolean shouldShowPlaceholders() {
+        return placeholdersEnabled && paginationEnabled && getPager().getTotalCount() >= 0;
     }
 
     private boolean shouldShowPaginationCell() {
@@ -0,0 +1,193 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import com.parse.ParseObject;
+import com.parse.ParseQuery;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@link ParseQueryPager} that pages by the last loaded value of a sort key instead of skipping
+ * over the previous pages.
+ * <p>
+ * With {@link ParseQuery#setSkip(int)} the server has to walk every skipped row, so each page is
+ * slower than the last, and rows inserted ahead of the current page shift results into pages that
+ * were already loaded. A keyset pager instead asks for the rows that sort after the last loaded
+ * one, which costs the same at any depth and isn't affected by inserts before it.
+ * <p>
+ * The query is ordered by the sort key, then by {@code objectId} to break ties. The sort key
+ * should be indexed, and any ordering already set on the query is replaced.
+ * <pre>
+ * ParseQuery&lt;ParseObject&gt; query = ParseQuery.getQuery(&quot;Message&quot;);
+ * ParseQueryPager&lt;ParseObject&gt; pager =
+ *     new ParseQueryKeysetPager&lt;&gt;(query, 25, &quot;createdAt&quot;, false);
+ * </pre>
+ *
+ * @param <T> A class that extends {@link ParseObject}
+ */
+public class ParseQueryKeysetPager<T extends ParseObject> extends ParseQueryPager<T> {
+
+  private static final String KEY_OBJECT_ID = "objectId";
+  private static final String KEY_CREATED_AT = "createdAt";
+  private static final String KEY_UPDATED_AT = "updatedAt";
+
+  private static Object getSortValue(ParseObject object, String key) {
+    switch (key) {
+      case KEY_OBJECT_ID:
+        return object.getObjectId();
+      case KEY_CREATED_AT:
+        return object.getCreatedAt();
+      case KEY_UPDATED_AT:
+        return object.getUpdatedAt();
+      default:
+        return object.get(key);
+    }
+  }
+
+  private final String sortKey;
+  private final boolean ascending;
+
+  /**
+   * Constructs a new instance of {@code ParseQueryKeysetPager} with the specified query.
+   *
+   * @param query The query for this {@code ParseQueryKeysetPager}.
+   * @param pageSize The size of each page.
+   * @param sortKey The key to sort and page by, such as {@code createdAt}.
+   * @param ascending Whether to sort in ascending order.
+   */
+  public ParseQueryKeysetPager(
+      ParseQuery<T> query, int pageSize, String sortKey, boolean ascending) {
+    super(query, pageSize);
+    this.sortKey = sortKey;
+    this.ascending = ascending;
+
+    ParseQuery<T> pagerQuery = getQuery();
+    if (ascending) {
+      pagerQuery.orderByAscending(sortKey);
+    } else {
+      pagerQuery.orderByDescending(sortKey);
+    }
+    if (!KEY_OBJECT_ID.equals(sortKey)) {
+      pagerQuery.addAscendingOrder(KEY_OBJECT_ID);
+    }
+  }
+
+  /**
+   * @return the key this {@code ParseQueryKeysetPager} sorts and pages by.
+   */
+  public String getSortKey() {
+    return sortKey;
+  }
+
+  /**
+   * @return whether this {@code ParseQueryKeysetPager} sorts in ascending order.
+   */
+  public boolean isAscending() {
+    return ascending;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Rather than skipping the previous pages, the query is constrained to rows that sort at or after
+   * the last loaded object. Rows that share its sort value and were already loaded are requested
+   * again and filtered out, since they can only be told apart by {@code objectId}.
+   */
+  @Override
+  protected ParseQuery<T> createQuery(int page) {
+    ParseQuery<T> query = new ParseQuery<>(getQuery());
+    Set<String> ties = page > 0 ? getLoadedTies(page) : null;
+    if (ties != null && !ties.isEmpty()) {
+      Object lastValue = getSortValue(lastObjectBefore(page), sortKey);
+      if (lastValue == null) {
+        throw new IllegalStateException("Unable to load next page when the last object has no "
+            + sortKey);
+      }
+      if (ascending) {
+        query.whereGreaterThanOrEqualTo(sortKey, lastValue);
+      } else {
+        query.whereLessThanOrEqualTo(sortKey, lastValue);
+      }
+    }
+    // Limit is pageSize + 1 so we can detect if there are more pages
+    query.setLimit(getPageSize() + 1 + (ties != null ? ties.size() : 0));
+    return query;
+  }
+
+  @Override
+  /* package */ boolean canLoadPagesInParallel() {
+    // Each page starts after the last object of the previous one
+    return false;
+  }
+
+  @Override
+  /* package */ void onPageResults(ParseQuery<T> query, int page, List<T> results) {
+    if (page == 0) {
+      return;
+    }
+    Set<String> ties = getLoadedTies(page);
+    Iterator<T> iterator = results.iterator();
+    while (iterator.hasNext()) {
+      if (ties.contains(iterator.next().getObjectId())) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the last loaded object of the pages before {@code page}.
+   */
+  private T lastObjectBefore(int page) {
+    List<T> objects = getObjects();
+    int end = Math.min(objects.size(), getPageSize() * page);
+    return end == 0 ? null : objects.get(end - 1);
+  }
+
+  /**
+   * @return the {@code objectId}s of the objects of the pages before {@code page} that share the
+   * sort value of the last one. A page can be loaded again once it's been added, such as when it's
+   * revalidated, so the objects of {@code page} itself are skipped.
+   */
+  private Set<String> getLoadedTies(int page) {
+    Set<String> ties = new HashSet<>();
+    List<T> objects = getObjects();
+    T last = lastObjectBefore(page);
+    if (last == null) {
+      return ties;
+    }
+    Object lastValue = getSortValue(last, sortKey);
+    int end = Math.min(objects.size(), getPageSize() * page);
+    for (int i = end - 1; i >= 0; i--) {
+      T object = objects.get(i);
+      Object value = getSortValue(object, sortKey);
+      if (lastValue == null ? value != null : !lastValue.equals(value)) {
+        break;
+      }
+      ties.add(object.getObjectId());
+    }
+    return ties;
+  }
+}
@@ -1,16 +1,34 @@
 package com.parse.ui.widget;
 
+import android.os.Bundle;
+
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
 import com.parse.FindCallback;
+import com.parse.Parse;
 import com.parse.ParseException;
 import com.parse.ParseObject;
 import com.parse.ParseQuery;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import bolts.CancellationToken;
+import bolts.CancellationTokenRegistration;
+import bolts.CancellationTokenSource;
+import bolts.Capture;
 import bolts.Continuation;
 import bolts.Task;
 import bolts.TaskCompletionSource;
@@ -22,13 +40,73 @@ import bolts.TaskCompletionSource;
  */
 public class ParseQueryPager<T extends ParseObject> {
 
+  /**
+   * The label that pages revalidated with {@link #setLocalDatastoreFirst(boolean)} are pinned
+   * with. Unpinning it discards them without touching the app's own pins.
+   */
+  public static final String PIN_NAME = "com.parse.ui.widget.ParseQueryPager";
+
   private static final int DEFAULT_PAGE_SIZE = 25;
+  private static final int DEFAULT_MAX_HYDRATED_OBJECTS = 32;
+
+  private static final String KEY_OBJECT_IDS = "com.parse.ui.widget.ParseQueryPager.objectIds";
+  private static final String KEY_SAVED_PAGES = "com.parse.ui.widget.ParseQueryPager.savedPages";
+  private static final String KEY_SAVED_OBJECTS =
+      "com.parse.ui.widget.ParseQueryPager.savedObjects";
+  private static final String KEY_CURRENT_PAGE = "com.parse.ui.widget.ParseQueryPager.currentPage";
+  private static final String KEY_HAS_NEXT_PAGE =
+      "com.parse.ui.widget.ParseQueryPager.hasNextPage";
+  private static final String KEY_ANCHOR_POSITION =
+      "com.parse.ui.widget.ParseQueryPager.anchorPosition";
+  // How many pages on either side of the anchor are saved with their data
+  private static final int SAVED_PAGE_RADIUS = 1;
+  // Saved state goes through a Binder transaction, which fails if the app's pending transactions
+  // exceed 1MB, so snapshots are capped well below that.
+  private static final int MAX_SAVED_OBJECT_IDS = 1000;
+  private static final int MAX_SAVED_OBJECTS = 50;
 
   private static <T extends ParseObject> Task<List<T>> findAsync(
-      ParseQuery<T> query, final CancellationToken ct) {
-    return query.findInBackground().continueWithTask(new Continuation<List<T>, Task<List<T>>>() {
+      ParseQuery<T> query, CancellationToken ct) {
+    Task<List<T>> task = query.findInBackground();
+    cancelQueryOnRequest(query, ct, task);
+    return cancellable(task, ct);
+  }
+
+  /**
+   * Cancels the requests of {@code query} when {@code ct} is cancelled before {@code task}
+   * completes, so that the download and decoding of its results stop rather than being ignored.
+   */
+  private static <R> void cancelQueryOnRequest(
+      final ParseQuery<?> query, CancellationToken ct, Task<R> task) {
+    cancelOnRequest(ct, new Runnable() {
       @Override
-      public Task<List<T>> then(Task<List<T>> task) throws Exception {
+      public void run() {
+        query.cancel();
+      }
+    }, task);
+  }
+
+  /**
+   * Runs {@code action} when {@code ct} is cancelled before {@code task} completes.
+   */
+  private static <R> void cancelOnRequest(CancellationToken ct, Runnable action, Task<R> task) {
+    if (ct == null || task.isCompleted()) {
+      return;
+    }
+    final CancellationTokenRegistration registration = ct.register(action);
+    task.continueWith(new Continuation<R, Void>() {
+      @Override
+      public Void then(Task<R> task) throws Exception {
+        registration.close();
+        return null;
+      }
+    });
+  }
+
+  private static <T> Task<T> cancellable(Task<T> task, final CancellationToken ct) {
+    return task.continueWithTask(new Continuation<T, Task<T>>() {
+      @Override
+      public Task<T> then(Task<T> task) throws Exception {
         if (ct != null && ct.isCancellationRequested()) {
           return Task.cancelled();
         }
@@ -37,9 +115,42 @@ public class ParseQueryPager<T extends ParseObject> {
     });
   }
 
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * @return a 64-bit FNV-1a hash of {@code objectId}, which doesn't allocate.
+   */
+  private static long hashObjectId(String objectId) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < objectId.length(); i++) {
+      hash ^= objectId.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private static ParseException toParseException(Exception error) {
+    return error == null || error instanceof ParseException
+        ? (ParseException) error
+        : new ParseException(error);
+  }
+
+  private static boolean isCacheThenNetwork(ParseQuery<?> query) {
+    try {
+      return query.getCachePolicy() == ParseQuery.CachePolicy.CACHE_THEN_NETWORK;
+    } catch (IllegalStateException ex) {
+      // LDS is enabled and we can't use CACHE_THEN_NETWORK
+      return false;
+    }
+  }
+
   /**
    * The callback that is called by {@link ParseQueryPager} when the results have changed.
    *
+   * Callbacks are called in order, without holding the pager's lock, after the change has been
+   * published to {@link #getObjects()}. They may read the pager or change it from within a call.
+   *
    * @param <T> A class that extends {@link ParseQueryPager}
    */
   public interface OnObjectsChangedCallback<T extends ParseQueryPager> {
@@ -84,16 +195,117 @@ public class ParseQueryPager<T extends ParseObject> {
     void onItemRangeRemoved(T sender, int positionStart, int itemCount);
   }
 
+  /**
+   * A page that was loaded ahead of being requested, and hasn't been added to the objects yet.
+   */
+  private class Prefetch {
+    private final int page;
+    private final ParseQuery<T> query;
+    private final CancellationTokenSource cts = new CancellationTokenSource();
+    private final Task<List<T>> task;
+
+    private Prefetch(int page, ParseQuery<T> query) {
+      this.page = page;
+      this.query = query;
+      this.task = findAsync(query, cts.getToken());
+    }
+  }
+
+  /**
+   * A change to the objects that hasn't been reported to the callbacks yet.
+   */
+  private static class Notification {
+    private static final int CHANGED = 0;
+    private static final int RANGE_CHANGED = 1;
+    private static final int RANGE_INSERTED = 2;
+    private static final int RANGE_MOVED = 3;
+    private static final int RANGE_REMOVED = 4;
+
+    private final int type;
+    private final int positionStart;
+    private final int itemCount;
+    private final int toPosition;
+
+    private Notification(int type, int positionStart, int itemCount, int toPosition) {
+      this.type = type;
+      this.positionStart = positionStart;
+      this.itemCount = itemCount;
+      this.toPosition = toPosition;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatch(ParseQueryPager sender, OnObjectsChangedCallback callback) {
+      switch (type) {
+        case CHANGED:
+          callback.onChanged(sender);
+          break;
+        case RANGE_CHANGED:
+          callback.onItemRangeChanged(sender, positionStart, itemCount);
+          break;
+        case RANGE_INSERTED:
+          callback.onItemRangeInserted(sender, positionStart, itemCount);
+          break;
+        case RANGE_MOVED:
+          callback.onItemRangeMoved(sender, positionStart, toPosition, itemCount);
+          break;
+        case RANGE_REMOVED:
+          callback.onItemRangeRemoved(sender, positionStart, itemCount);
+          break;
+      }
+    }
+  }
+
   private final ParseQuery<T> query;
   private final int pageSize;
+  // The objects, only accessed while holding lock. Every change to them is published to readers
+  // as a new immutable snapshot.
   private final List<T> objects = new ArrayList<>();
-  private final List<T> unmodifiableObjects = Collections.unmodifiableList(objects);
+  private volatile List<T> snapshot = Collections.emptyList();
   private final List<OnObjectsChangedCallback> callbacks = new ArrayList<>();
+  private final ArrayDeque<Notification> pendingNotifications = new ArrayDeque<>();
+  private boolean isDispatchingNotifications = false;
   private final Object lock = new Object();
 
   private int currentPage = -1;
   private boolean hasNextPage = true;
   private Task<List<T>> loadNextPageTask;
+  // The version of the snapshot, incremented whenever objects changes.
+  private int modCount = 0;
+
+  // The stable ids handed out for objectIds, and the other way around to resolve collisions.
+  private final Map<String, Long> itemIds = new HashMap<>();
+  private final Map<Long, String> itemIdObjectIds = new HashMap<>();
+
+  private boolean localDatastoreFirst = false;
+
+  private boolean countEnabled = false;
+  // The total number of objects the query matches, or -1 if it isn't known yet.
+  private int totalCount = -1;
+  private Task<Integer> countTask;
+
+  private int prefetchDistance = 0;
+  private boolean publishPrefetchedPages = false;
+  private Prefetch prefetch;
+
+  private int maxLoadedPages = 0;
+  private int lastReadPosition = 0;
+  // Pages whose objects have been replaced with stubs, and the ones of those being reloaded.
+  private final Set<Integer> evictedPages = new HashSet<>();
+  private final Set<Integer> reloadingPages = new HashSet<>();
+  // The token of the most recent load, which reloads of evicted pages are cancelled with too.
+  private CancellationToken loadToken;
+
+  // Objects completed by hydrate(int) by objectId, least recently hydrated first, and the
+  // hydrations in flight.
+  private int maxHydratedObjects = DEFAULT_MAX_HYDRATED_OBJECTS;
+  private final LinkedHashMap<String, T> hydratedObjects = new LinkedHashMap<String, T>(16, 0.75f,
+      true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+      return size() > maxHydratedObjects;
+    }
+  };
+  private final Map<String, Task<T>> hydrations = new HashMap<>();
 
   /**
    * Constructs a new instance of {@code ParseQueryPager} with the specified query.
@@ -162,206 +374,1369 @@ public class ParseQueryPager<T extends ParseObject> {
   }
 
   /**
-   * @return the loaded objects.
+   * Sets whether pages are served from the local datastore first, then revalidated against the
+   * network. Each page is added to the objects as soon as it's found locally, then the network
+   * results replace it: only the objects that were inserted, removed, moved or updated are
+   * reported through {@link OnObjectsChangedCallback}, and the fresh results are pinned with
+   * {@link #PIN_NAME} so that they're served locally next time. Objects that no longer match are
+   * unpinned from {@code PIN_NAME}, so objects the app has pinned itself, with the default label
+   * or any other, stay pinned.
+   *
+   * This is the local datastore counterpart of {@link ParseQuery.CachePolicy#CACHE_THEN_NETWORK},
+   * which can't be used with it. As with {@code CACHE_THEN_NETWORK}, the {@link FindCallback} of
+   * {@link #loadNextPage(FindCallback)} is called twice, and the returned tasks resolve to the
+   * network results. It has no effect unless the local datastore is enabled.
+   *
+   * @param localDatastoreFirst Whether to serve pages from the local datastore first.
    */
-  public List<T> getObjects() {
-    return unmodifiableObjects;
+  public void setLocalDatastoreFirst(boolean localDatastoreFirst) {
+    synchronized (lock) {
+      this.localDatastoreFirst = localDatastoreFirst;
+    }
   }
 
-  public void addOnObjectsChangedCallback(OnObjectsChangedCallback callback) {
+  /**
+   * @return whether pages are served from the local datastore before the network.
+   */
+  public boolean isLocalDatastoreFirst() {
     synchronized (lock) {
-      callbacks.add(callback);
+      return localDatastoreFirst && Parse.isLocalDatastoreEnabled();
     }
   }
 
-  public void removeOnObjectsChangedCallback(OnObjectsChangedCallback callback) {
+  /**
+   * Sets whether the objects matching the query are counted, so that {@link #getTotalCount()} is
+   * known before every page has been loaded. The count is requested in parallel with the first
+   * page, and again when the pager is refreshed. Once it arrives,
+   * {@link OnObjectsChangedCallback#onChanged} is called. Defaults to {@code false}.
+   *
+   * @param countEnabled Whether to count the objects matching the query.
+   */
+  public void setCountEnabled(boolean countEnabled) {
     synchronized (lock) {
-      callbacks.remove(callback);
+      this.countEnabled = countEnabled;
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private void notifyRangeChanged(int positionStart, int positionEnd) {
+  /**
+   * @return whether the objects matching the query are counted.
+   */
+  public boolean isCountEnabled() {
     synchronized (lock) {
-      for (OnObjectsChangedCallback callback : callbacks) {
-        callback.onItemRangeChanged(this, positionStart, positionEnd);
-      }
+      return countEnabled;
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private void notifyRangeInserted(int positionStart, int positionEnd) {
+  /**
+   * Returns the total number of objects, including the ones that haven't been loaded yet. It's
+   * exact once the last page has been loaded, and otherwise requires {@link #setCountEnabled}.
+   *
+   * @return the total number of objects, or {@code -1} if it isn't known yet.
+   */
+  public int getTotalCount() {
     synchronized (lock) {
-      for (OnObjectsChangedCallback callback : callbacks) {
-        callback.onItemRangeInserted(this, positionStart, positionEnd);
+      if (!hasNextPage) {
+        return objects.size();
       }
+      return totalCount < 0 ? -1 : Math.max(totalCount, objects.size());
     }
   }
 
-  private void setLoadNextPageTask(Task<List<T>> task) {
+  /**
+   * Sets how close to the end of the loaded objects the consumer has to read before the next page
+   * is loaded in the background. The prefetched page is added to the objects the next time
+   * {@link #loadNextPage()} is called, without waiting on the network, or as soon as it arrives if
+   * {@link #setPublishPrefetchedPages(boolean)} is enabled.
+   *
+   * Queries with {@link ParseQuery.CachePolicy#CACHE_THEN_NETWORK} are never prefetched.
+   *
+   * @param prefetchDistance The number of items from the end, or {@code 0} to disable prefetching.
+   * @see #prefetchIfNeeded(int)
+   */
+  public void setPrefetchDistance(int prefetchDistance) {
     synchronized (lock) {
-      loadNextPageTask = task.continueWithTask(new Continuation<List<T>, Task<List<T>>>() {
-        @Override
-        public Task<List<T>> then(Task<List<T>> task) throws Exception {
-          synchronized (lock) {
-            loadNextPageTask = null;
-          }
-          return task;
-        }
-      });
+      this.prefetchDistance = prefetchDistance;
     }
   }
 
   /**
-   * Returns a new instance of {@link ParseQuery} to be used to load the next page of results.
-   *
-   * Its limit should be one more than {@code pageSize} so that {@code hasNextPage} can be
-   * determined.
+   * @return how close to the end of the loaded objects the consumer has to read before the next
+   * page is prefetched, or {@code 0} if prefetching is disabled.
+   */
+  public int getPrefetchDistance() {
+    synchronized (lock) {
+      return prefetchDistance;
+    }
+  }
+
+  /**
+   * Sets whether prefetched pages are added to the objects as soon as they arrive, rather than the
+   * next time {@link #loadNextPage()} is called. Defaults to {@code false}.
    *
-   * @param page The page the query should load.
-   * @return a new instance of {@link ParseQuery}.
+   * @param publishPrefetchedPages Whether to publish prefetched pages automatically.
    */
-  protected ParseQuery<T> createQuery(int page) {
-    ParseQuery<T> query = new ParseQuery<>(getQuery());
-    query.setSkip(getPageSize() * page);
-    // Limit is pageSize + 1 so we can detect if there are more pages
-    query.setLimit(getPageSize() + 1);
-    return query;
+  public void setPublishPrefetchedPages(boolean publishPrefetchedPages) {
+    synchronized (lock) {
+      this.publishPrefetchedPages = publishPrefetchedPages;
+    }
   }
 
-  // Note: This should not be called multiple times.
-  public Task<List<T>> loadNextPage() {
-    return loadNextPage((CancellationToken) null);
+  /**
+   * @return whether prefetched pages are added to the objects as soon as they arrive.
+   */
+  public boolean isPublishingPrefetchedPages() {
+    synchronized (lock) {
+      return publishPrefetchedPages;
+    }
   }
 
   /**
-   * Loads the next page.
+   * Limits how many pages of objects are held in memory. Once more pages are loaded, the pages
+   * farthest from the position last passed to {@link #prefetchIfNeeded(int)} are evicted: their
+   * objects are replaced with stubs that only have an {@code objectId}, and
+   * {@link OnObjectsChangedCallback#onItemRangeChanged} is called for them. Evicted pages are
+   * reloaded when they're read again, and {@code onItemRangeChanged} is called again once they are.
    *
-   * The next page is defined by {@code currentPage + 1}.
+   * The positions of objects never change, so stubs can be told apart with
+   * {@link ParseObject#isDataAvailable()} or {@link #isLoaded(int)}. The last page is never
+   * evicted, since it's needed to load the next one.
    *
-   * @param ct Token used to cancel the task.
-   * @return A {@link Task} that resolves to the result of the next page.
+   * @param maxLoadedPages The maximum number of pages to hold, or {@code 0} for no limit.
    */
-  public Task<List<T>> loadNextPage(CancellationToken ct) {
-    if (!hasNextPage()) {
-      throw new IllegalStateException("Unable to load next page when there are no more pages available");
+  public void setMaxLoadedPages(int maxLoadedPages) {
+    synchronized (lock) {
+      this.maxLoadedPages = maxLoadedPages;
+      trimToMaxLoadedPagesLocked();
     }
+    dispatchNotifications();
+  }
 
-    final int page = getCurrentPage() + 1;
-
-    // TODO(grantland): Utilize query.findInBackground(CancellationToken)
-    final ParseQuery<T> query = createQuery(page);
-    Task<List<T>> task = findAsync(query, ct).continueWithTask(new Continuation<List<T>, Task<List<T>>>() {
-      @Override
-      public Task<List<T>> then(Task<List<T>> task) throws Exception {
-        if (task.isCancelled() || task.isFaulted()) {
-          return task;
-        }
-
-        List<T> results = task.getResult();
-        onPage(query, page, results);
-
-        return task;
-      }
-    }, Task.UI_THREAD_EXECUTOR);
-
-    setLoadNextPageTask(task);
-
-    return task;
+  /**
+   * @return the maximum number of pages of objects held in memory, or {@code 0} if there is no
+   * limit.
+   */
+  public int getMaxLoadedPages() {
+    synchronized (lock) {
+      return maxLoadedPages;
+    }
   }
 
   /**
-   * Loads the next page.
-   *
-   * The next page is defined by {@code currentPage + 1}.
-   *
-   * @param callback A {@code callback} that will be called with the result of the next page.
+   * @return whether the object at {@code position} is loaded, rather than a stub of an evicted
+   * page.
+   * @see #setMaxLoadedPages(int)
    */
-  public void loadNextPage(final FindCallback<T> callback) {
-    loadNextPage(callback, null);
+  public boolean isLoaded(int position) {
+    synchronized (lock) {
+      return !evictedPages.contains(position / pageSize);
+    }
   }
 
   /**
-   * Loads the next page.
+   * Tells the pager that the consumer has read the item at {@code position}, for example when
+   * binding its view. This starts loading the next page in the background if {@code position} is
+   * within the prefetch distance of the end of the loaded objects, and reloads evicted pages around
+   * it.
    *
-   * The next page is defined by {@code currentPage + 1}.
-   *
-   * @param callback A {@code callback} that will be called with the result of the next page.
-   * @param ct Token used to cancel the task.
+   * @param position The position of the item that was read.
+   * @see #setPrefetchDistance(int)
+   * @see #setMaxLoadedPages(int)
    */
-  public void loadNextPage(final FindCallback<T> callback, final CancellationToken ct) {
-    if (!hasNextPage()) {
-      throw new IllegalStateException("Unable to load next page when there are no more pages available");
+  public void prefetchIfNeeded(int position) {
+    int distance;
+    synchronized (lock) {
+      lastReadPosition = position;
+      distance = prefetchDistance;
+    }
+    reloadPageIfNeeded(position / pageSize);
+    if (distance > 0) {
+      reloadPageIfNeeded((position - distance) / pageSize);
+      reloadPageIfNeeded((position + distance) / pageSize);
     }
 
-    final int page = getCurrentPage() + 1;
+    final Prefetch newPrefetch;
+    final boolean publish;
+    synchronized (lock) {
+      if (prefetchDistance <= 0 || prefetch != null || !hasNextPage
+          || position < objects.size() - prefetchDistance
+          || (loadNextPageTask != null && !loadNextPageTask.isCompleted())
+          || isCacheThenNetwork(query)) {
+        return;
+      }
+      newPrefetch = new Prefetch(currentPage + 1, createQuery(currentPage + 1));
+      prefetch = newPrefetch;
+      publish = publishPrefetchedPages;
+    }
 
-    final TaskCompletionSource<List<T>> tcs = new TaskCompletionSource<>();
-    final ParseQuery<T> query = createQuery(page);
-    query.findInBackground(new FindCallback<T>() {
+    if (publish) {
+      newPrefetch.task.continueWith(new Continuation<List<T>, Void>() {
+        @Override
+        public Void then(Task<List<T>> task) throws Exception {
+          synchronized (lock) {
+            if (prefetch != newPrefetch
+                || (loadNextPageTask != null && !loadNextPageTask.isCompleted())) {
+              // Already taken by loadNextPage, or we'll be taken by the one in flight
+              return null;
+            }
+          }
+          loadNextPage();
+          return null;
+        }
+      }, Task.UI_THREAD_EXECUTOR);
+    }
+  }
 
-      AtomicInteger callbacks = new AtomicInteger();
+  /**
+   * Reloads the objects of {@code page} if it has been evicted. They're queried by
+   * {@code objectId}, so the page comes back the same regardless of how the pager pages. Objects
+   * that no longer match the query stay stubs.
+   */
+  private void reloadPageIfNeeded(final int page) {
+    List<String> objectIds = new ArrayList<>();
+    final CancellationToken ct;
+    synchronized (lock) {
+      ct = loadToken;
+      if (page < 0 || !evictedPages.contains(page) || reloadingPages.contains(page)
+          || (ct != null && ct.isCancellationRequested())) {
+        return;
+      }
+      reloadingPages.add(page);
+      int end = Math.min(objects.size(), pageSize * (page + 1));
+      for (int i = pageSize * page; i < end; i++) {
+        objectIds.add(objects.get(i).getObjectId());
+      }
+    }
 
+    ParseQuery<T> reloadQuery = createReloadQuery();
+    reloadQuery.whereContainedIn("objectId", objectIds);
+    reloadQuery.setLimit(objectIds.size());
+    if (isCacheThenNetwork(reloadQuery)) {
+      // Only resolves once, unlike CACHE_THEN_NETWORK
+      reloadQuery.setCachePolicy(ParseQuery.CachePolicy.NETWORK_ELSE_CACHE);
+    }
+    findAsync(reloadQuery, ct).continueWith(new Continuation<List<T>, Void>() {
       @Override
-      public void done(List<T> results, ParseException e) {
-        boolean isCancelled = ct != null && ct.isCancellationRequested();
-        if (!isCancelled && e == null) {
-          onPage(query, page, results);
-        }
+      public Void then(Task<List<T>> task) throws Exception {
+        onPageReloaded(page, task);
+        return null;
+      }
+    }, Task.UI_THREAD_EXECUTOR);
+  }
 
-        boolean isCacheThenNetwork = false;
-        try {
-          ParseQuery.CachePolicy policy = getQuery().getCachePolicy();
-          isCacheThenNetwork = policy == ParseQuery.CachePolicy.CACHE_THEN_NETWORK;
-        } catch (IllegalStateException ex) {
-          // do nothing, LDS is enabled and we can't use CACHE_THEN_NETWORK
+  private void onPageReloaded(int page, Task<List<T>> task) {
+    synchronized (lock) {
+      reloadingPages.remove(page);
+      if (task.isCancelled() || task.isFaulted() || !evictedPages.contains(page)) {
+        // It'll be retried the next time it's read
+        return;
+      }
+
+      Map<String, T> reloaded = new HashMap<>();
+      for (T object : task.getResult()) {
+        reloaded.put(object.getObjectId(), object);
+      }
+      int start = pageSize * page;
+      int end = Math.min(objects.size(), start + pageSize);
+      for (int i = start; i < end; i++) {
+        T object = reloaded.get(objects.get(i).getObjectId());
+        if (object != null) {
+          objects.set(i, object);
         }
-        if (!isCacheThenNetwork || callbacks.incrementAndGet() >= 2) {
-          if (isCancelled) {
-            tcs.trySetCancelled();
-          } else {
-            tcs.trySetResult(results);
-          }
+      }
+      evictedPages.remove(page);
+      publishLocked();
+      notifyRangeChanged(start, end - start);
+      trimToMaxLoadedPagesLocked();
+    }
+    dispatchNotifications();
+  }
+
+  /**
+   * Evicts the loaded pages farthest from the last read position until at most
+   * {@code maxLoadedPages} are loaded.
+   */
+  private void trimToMaxLoadedPagesLocked() {
+    if (maxLoadedPages <= 0) {
+      return;
+    }
+    int readPage = lastReadPosition / pageSize;
+    while (currentPage + 1 - evictedPages.size() > maxLoadedPages) {
+      int farthestPage = -1;
+      int farthestDistance = 0;
+      // The last page is never evicted
+      for (int page = 0; page < currentPage; page++) {
+        int distance = Math.abs(page - readPage);
+        if (!evictedPages.contains(page) && distance > farthestDistance) {
+          farthestPage = page;
+          farthestDistance = distance;
         }
+      }
+      if (farthestPage < 0) {
+        return;
+      }
+      evictPageLocked(farthestPage);
+    }
+  }
 
-        callback.done(results, e);
+  @SuppressWarnings("unchecked")
+  private void evictPageLocked(int page) {
+    int start = pageSize * page;
+    int end = Math.min(objects.size(), start + pageSize);
+    for (int i = start; i < end; i++) {
+      T object = objects.get(i);
+      if (object.getObjectId() != null) {
+        objects.set(i, (T) ParseObject.createWithoutData(
+            object.getClassName(), object.getObjectId()));
       }
-    });
+    }
+    evictedPages.add(page);
+    publishLocked();
+    notifyRangeChanged(start, end - start);
+  }
 
-    setLoadNextPageTask(tcs.getTask());
+  private void cancelPrefetchOnRequest(final Prefetch prefetch, CancellationToken ct) {
+    cancelOnRequest(ct, new Runnable() {
+      @Override
+      public void run() {
+        prefetch.cts.cancel();
+      }
+    }, prefetch.task);
   }
 
-  private void onPage(ParseQuery<T> query, int page, List<T> results) {
+  /**
+   * Removes and returns the prefetch of {@code page}, if there is a usable one. Any other prefetch
+   * is cancelled.
+   */
+  private Prefetch takePrefetch(int page) {
     synchronized (lock) {
-      int itemCount = results.size();
+      Prefetch taken = prefetch;
+      prefetch = null;
+      if (taken == null) {
+        return null;
+      }
+      if (taken.page != page || taken.task.isFaulted() || taken.task.isCancelled()) {
+        // Stale or failed, load it again
+        taken.cts.cancel();
+        return null;
+      }
+      return taken;
+    }
+  }
 
-      currentPage = page;
-      int limit = query.getLimit();
-      if (limit == -1 || limit == pageSize) {
-        // Backwards compatibility hack to support ParseQueryAdapter#setPaginationEnabled(false)
-        hasNextPage = false;
-      } else {
-        // We detect if there are more pages by setting the limit pageSize + 1 and we remove the extra
-        // if there are more pages.
-        hasNextPage = itemCount >= pageSize + 1;
-        if (itemCount > pageSize) {
-          results.remove(pageSize);
-        }
+  /**
+   * Returns an immutable snapshot of the loaded objects. It doesn't block and never changes, even
+   * as pages are loaded or evicted, so it can be read from any thread without holding a lock. Call
+   * this again for the latest objects.
+   *
+   * @return the loaded objects.
+   */
+  public List<T> getObjects() {
+    return snapshot;
+  }
+
+  /**
+   * Publishes the objects as a new snapshot. Must be called while holding {@code lock} after
+   * every change to them, before notifying.
+   */
+  private void publishLocked() {
+    modCount++;
+    snapshot = Collections.unmodifiableList(new ArrayList<>(objects));
+  }
+
+  /**
+   * Returns a stable id for the object at {@code position}, which stays the same for its
+   * {@code objectId} across pages, reloads and refreshes of this pager. Ids are never negative.
+   *
+   * @param position The position of the object.
+   * @return the stable id of the object.
+   * @see #getItemId(ParseObject)
+   */
+  public long getItemId(int position) {
+    return getItemId(getObjects().get(position));
+  }
+
+  /**
+   * Returns a stable id for {@code object}, derived from its {@code objectId}. Ids are hashes of
+   * the {@code objectId}, and the rare ids that collide are remapped, so that no two
+   * {@code objectId}s have the same id. Objects without an {@code objectId} get an id that's only
+   * stable for as long as the instance is.
+   *
+   * @param object The object.
+   * @return the stable id of the object.
+   */
+  public long getItemId(T object) {
+    String objectId = object.getObjectId();
+    if (objectId == null) {
+      return System.identityHashCode(object) & 0xffffffffL;
+    }
+    synchronized (lock) {
+      Long itemId = itemIds.get(objectId);
+      if (itemId != null) {
+        return itemId;
       }
-      int objectsSize = objects.size();
-      boolean inserted = true;
-      if (objectsSize > pageSize * page) {
-        inserted = false;
-        objects.subList(pageSize * page, Math.min(objectsSize, pageSize * (page + 1))).clear();
+      // Ids of unsaved objects are ints, so keep hashes clear of them
+      long id = (hashObjectId(objectId) & Long.MAX_VALUE) | 0x100000000L;
+      while (itemIdObjectIds.containsKey(id)) {
+        id = ((id + 1) & Long.MAX_VALUE) | 0x100000000L;
       }
-      objects.addAll(pageSize * page, results);
+      itemIds.put(objectId, id);
+      itemIdObjectIds.put(id, objectId);
+      return id;
+    }
+  }
 
-      int positionStart = pageSize * page;
-      if (inserted) {
-        notifyRangeInserted(positionStart, itemCount);
+  /**
+   * Sets how many objects completed by {@link #hydrate(int)} are cached, so that opening them
+   * again doesn't fetch them again, even once their page has been evicted or refreshed. The least
+   * recently hydrated objects are dropped first. Defaults to 32.
+   *
+   * @param maxHydratedObjects The maximum number of hydrated objects to cache, or {@code 0} to not
+   *                           cache them.
+   */
+  public void setMaxHydratedObjects(int maxHydratedObjects) {
+    synchronized (lock) {
+      this.maxHydratedObjects = maxHydratedObjects;
+      Iterator<String> iterator = hydratedObjects.keySet().iterator();
+      while (hydratedObjects.size() > maxHydratedObjects && iterator.hasNext()) {
+        iterator.next();
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the maximum number of objects completed by {@link #hydrate(int)} that are cached.
+   */
+  public int getMaxHydratedObjects() {
+    synchronized (lock) {
+      return maxHydratedObjects;
+    }
+  }
+
+  /**
+   * @see #hydrate(int, CancellationToken)
+   */
+  public Task<T> hydrate(int position) {
+    return hydrate(position, null);
+  }
+
+  /**
+   * Fetches every key of the object at {@code position}, such as when it's opened in a detail
+   * screen. The loaded objects may be incomplete, such as when they only have the keys a list
+   * displays, or stubs of an evicted page.
+   *
+   * The object is fetched in place, so the keys it already has can be displayed right away while it
+   * is hydrating. Hydrations of the same object share one request, and hydrated objects are cached
+   * by {@code objectId}, see {@link #setMaxHydratedObjects(int)}. A cached object is returned
+   * unless the loaded one has been updated since.
+   *
+   * @param position The position of the object.
+   * @param ct Cancels waiting on the hydration, which other callers may be sharing.
+   * @return A {@link Task} that resolves to the complete object.
+   */
+  public Task<T> hydrate(int position, CancellationToken ct) {
+    Task<T> task;
+    synchronized (lock) {
+      if (position < 0 || position >= objects.size()) {
+        return Task.forError(new IndexOutOfBoundsException(
+            "Unable to hydrate position " + position + " of " + objects.size() + " objects"));
+      }
+      final T object = objects.get(position);
+      final String objectId = object.getObjectId();
+      if (objectId == null) {
+        // It hasn't been saved, so it's as complete as it gets
+        return Task.forResult(object);
+      }
+
+      T hydrated = hydratedObjects.get(objectId);
+      if (hydrated != null && !isNewer(object, hydrated)) {
+        return cancellable(Task.forResult(hydrated), ct);
+      }
+
+      task = hydrations.get(objectId);
+      if (task == null) {
+        task = object.<T>fetchInBackground().continueWithTask(new Continuation<T, Task<T>>() {
+          @Override
+          public Task<T> then(Task<T> task) throws Exception {
+            synchronized (lock) {
+              hydrations.remove(objectId);
+              if (!task.isFaulted() && !task.isCancelled() && maxHydratedObjects > 0) {
+                hydratedObjects.put(objectId, task.getResult());
+              }
+            }
+            return task;
+          }
+        });
+        if (!task.isCompleted()) {
+          hydrations.put(objectId, task);
+        }
+      }
+    }
+    return cancellable(task, ct);
+  }
+
+  /**
+   * @return whether {@code object} was updated after {@code other} was fetched.
+   */
+  private static boolean isNewer(ParseObject object, ParseObject other) {
+    if (object == other) {
+      return false;
+    }
+    Date updatedAt = object.getUpdatedAt();
+    Date otherUpdatedAt = other.getUpdatedAt();
+    return updatedAt != null && (otherUpdatedAt == null || updatedAt.after(otherUpdatedAt));
+  }
+
+  public void addOnObjectsChangedCallback(OnObjectsChangedCallback callback) {
+    synchronized (lock) {
+      callbacks.add(callback);
+    }
+  }
+
+  public void removeOnObjectsChangedCallback(OnObjectsChangedCallback callback) {
+    synchronized (lock) {
+      callbacks.remove(callback);
+    }
+  }
+
+  private void notifyRangeChanged(int positionStart, int itemCount) {
+    enqueueNotification(
+        new Notification(Notification.RANGE_CHANGED, positionStart, itemCount, 0));
+  }
+
+  private void notifyRangeInserted(int positionStart, int itemCount) {
+    enqueueNotification(
+        new Notification(Notification.RANGE_INSERTED, positionStart, itemCount, 0));
+  }
+
+  private void notifyRangeRemoved(int positionStart, int itemCount) {
+    enqueueNotification(
+        new Notification(Notification.RANGE_REMOVED, positionStart, itemCount, 0));
+  }
+
+  private void notifyRangeMoved(int fromPosition, int toPosition) {
+    enqueueNotification(new Notification(Notification.RANGE_MOVED, fromPosition, 1, toPosition));
+  }
+
+  private void notifyChanged() {
+    enqueueNotification(new Notification(Notification.CHANGED, 0, 0, 0));
+  }
+
+  private void enqueueNotification(Notification notification) {
+    synchronized (lock) {
+      pendingNotifications.add(notification);
+    }
+  }
+
+  /**
+   * Calls the callbacks for the pending notifications, in order. This must be called without
+   * holding {@code lock}, after any change that notifies, so that callbacks never run while
+   * readers or writers are waiting on it. If another thread is already dispatching, it dispatches
+   * ours as well.
+   */
+  private void dispatchNotifications() {
+    synchronized (lock) {
+      if (isDispatchingNotifications) {
+        return;
+      }
+      isDispatchingNotifications = true;
+    }
+    boolean isDone = false;
+    try {
+      while (true) {
+        Notification notification;
+        List<OnObjectsChangedCallback> callbacksToNotify;
+        synchronized (lock) {
+          notification = pendingNotifications.poll();
+          if (notification == null) {
+            isDispatchingNotifications = false;
+            isDone = true;
+            return;
+          }
+          callbacksToNotify = new ArrayList<>(callbacks);
+        }
+        for (OnObjectsChangedCallback callback : callbacksToNotify) {
+          notification.dispatch(this, callback);
+        }
+      }
+    } finally {
+      if (!isDone) {
+        // A callback threw, let the next change dispatch the rest
+        synchronized (lock) {
+          isDispatchingNotifications = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Notifies the ranges of {@code diff}, offset by {@code positionStart}.
+   */
+  private void dispatchDiff(DiffUtil.DiffResult diff, final int positionStart) {
+    diff.dispatchUpdatesTo(new ListUpdateCallback() {
+      @Override
+      public void onInserted(int position, int count) {
+        notifyRangeInserted(positionStart + position, count);
+      }
+
+      @Override
+      public void onRemoved(int position, int count) {
+        notifyRangeRemoved(positionStart + position, count);
+      }
+
+      @Override
+      public void onMoved(int fromPosition, int toPosition) {
+        notifyRangeMoved(positionStart + fromPosition, positionStart + toPosition);
+      }
+
+      @Override
+      public void onChanged(int position, int count, Object payload) {
+        notifyRangeChanged(positionStart + position, count);
+      }
+    });
+  }
+
+  private void setLoadNextPageTask(Task<List<T>> task) {
+    synchronized (lock) {
+      final Capture<Task<List<T>>> wrapped = new Capture<>();
+      wrapped.set(task.continueWithTask(new Continuation<List<T>, Task<List<T>>>() {
+        @Override
+        public Task<List<T>> then(Task<List<T>> task) throws Exception {
+          synchronized (lock) {
+            // A later load may have taken its place already
+            if (loadNextPageTask == wrapped.get()) {
+              loadNextPageTask = null;
+            }
+          }
+          return task;
+        }
+      }));
+      loadNextPageTask = wrapped.get();
+    }
+  }
+
+  /**
+   * Returns a new instance of {@link ParseQuery} to be used to load the next page of results.
+   *
+   * Its limit should be one more than {@code pageSize} so that {@code hasNextPage} can be
+   * determined.
+   *
+   * @param page The page the query should load.
+   * @return a new instance of {@link ParseQuery}.
+   */
+  protected ParseQuery<T> createQuery(int page) {
+    ParseQuery<T> query = new ParseQuery<>(getQuery());
+    query.setSkip(getPageSize() * page);
+    // Limit is pageSize + 1 so we can detect if there are more pages
+    query.setLimit(getPageSize() + 1);
+    return query;
+  }
+
+  // Note: This should not be called multiple times.
+  public Task<List<T>> loadNextPage() {
+    return loadNextPage((CancellationToken) null);
+  }
+
+  /**
+   * Loads the next page.
+   *
+   * The next page is defined by {@code currentPage + 1}.
+   *
+   * @param ct Token used to cancel the task.
+   * @return A {@link Task} that resolves to the result of the next page.
+   */
+  public Task<List<T>> loadNextPage(CancellationToken ct) {
+    if (!hasNextPage()) {
+      throw new IllegalStateException("Unable to load next page when there are no more pages available");
+    }
+
+    Task<List<T>> task = findNextPage(ct);
+    setLoadNextPageTask(task);
+    return task;
+  }
+
+  /**
+   * Loads the next page without tracking it as the load {@link #isLoadingNextPage()} reports on,
+   * so that it can be one step of a larger load.
+   */
+  private Task<List<T>> findNextPage(CancellationToken ct) {
+    final int page = getCurrentPage() + 1;
+    onLoadRequested(page, ct);
+
+    Prefetch prefetch = takePrefetch(page);
+    if (prefetch == null && isLocalDatastoreFirst()) {
+      return loadPageLocalDatastoreFirst(page, createQuery(page), null, ct);
+    }
+    final ParseQuery<T> query = prefetch != null ? prefetch.query : createQuery(page);
+    Task<List<T>> findTask;
+    if (prefetch != null) {
+      cancelPrefetchOnRequest(prefetch, ct);
+      findTask = cancellable(prefetch.task, ct);
+    } else {
+      findTask = findAsync(query, ct);
+    }
+    return findTask.continueWithTask(new Continuation<List<T>, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<List<T>> task) throws Exception {
+        if (task.isCancelled() || task.isFaulted()) {
+          return task;
+        }
+
+        List<T> results = task.getResult();
+        onPage(query, page, results);
+
+        return task;
+      }
+    }, Task.UI_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Loads the next page.
+   *
+   * The next page is defined by {@code currentPage + 1}.
+   *
+   * @param callback A {@code callback} that will be called with the result of the next page.
+   */
+  public void loadNextPage(final FindCallback<T> callback) {
+    loadNextPage(callback, null);
+  }
+
+  /**
+   * Loads the next page.
+   *
+   * The next page is defined by {@code currentPage + 1}.
+   *
+   * @param callback A {@code callback} that will be called with the result of the next page.
+   * @param ct Token used to cancel the task.
+   */
+  public void loadNextPage(final FindCallback<T> callback, final CancellationToken ct) {
+    if (!hasNextPage()) {
+      throw new IllegalStateException("Unable to load next page when there are no more pages available");
+    }
+
+    final int page = getCurrentPage() + 1;
+    onLoadRequested(page, ct);
+
+    Prefetch prefetch = takePrefetch(page);
+    if (prefetch == null && isLocalDatastoreFirst()) {
+      setLoadNextPageTask(loadPageLocalDatastoreFirst(page, createQuery(page), callback, ct));
+      return;
+    }
+
+    final TaskCompletionSource<List<T>> tcs = new TaskCompletionSource<>();
+    final ParseQuery<T> query = prefetch != null ? prefetch.query : createQuery(page);
+    final FindCallback<T> findCallback = new FindCallback<T>() {
+
+      AtomicInteger callbacks = new AtomicInteger();
+
+      @Override
+      public void done(List<T> results, ParseException e) {
+        boolean isCancelled = ct != null && ct.isCancellationRequested();
+        if (!isCancelled && e == null) {
+          onPage(query, page, results);
+        }
+
+        if (!isCacheThenNetwork(getQuery()) || callbacks.incrementAndGet() >= 2) {
+          if (isCancelled) {
+            tcs.trySetCancelled();
+          } else {
+            tcs.trySetResult(results);
+          }
+        }
+
+        callback.done(results, e);
+      }
+    };
+
+    if (prefetch != null) {
+      cancelPrefetchOnRequest(prefetch, ct);
+      prefetch.task.continueWith(new Continuation<List<T>, Void>() {
+        @Override
+        public Void then(Task<List<T>> task) throws Exception {
+          findCallback.done(task.getResult(), toParseException(task.getError()));
+          return null;
+        }
+      }, Task.UI_THREAD_EXECUTOR);
+    } else {
+      query.findInBackground(findCallback);
+      cancelOnRequest(ct, new Runnable() {
+        @Override
+        public void run() {
+          query.cancel();
+          // The callback isn't called for cancelled queries
+          tcs.trySetCancelled();
+        }
+      }, tcs.getTask());
+    }
+
+    setLoadNextPageTask(tcs.getTask());
+  }
+
+  /**
+   * Called whenever loading starts at {@code page}, to start the requests that go along with it.
+   */
+  private void onLoadRequested(int page, CancellationToken ct) {
+    synchronized (lock) {
+      loadToken = ct;
+    }
+    countIfNeeded(page, ct);
+  }
+
+  /**
+   * Starts counting the objects matching the query when the first page is loaded, if counting is
+   * enabled and a count isn't already in flight.
+   */
+  private void countIfNeeded(int page, final CancellationToken ct) {
+    ParseQuery<T> countQuery;
+    synchronized (lock) {
+      if (!countEnabled || page != 0 || (countTask != null && !countTask.isCompleted())) {
+        return;
+      }
+      countQuery = new ParseQuery<>(getQuery());
+    }
+    if (isCacheThenNetwork(countQuery)) {
+      // Only resolves once, unlike CACHE_THEN_NETWORK
+      countQuery.setCachePolicy(ParseQuery.CachePolicy.NETWORK_ELSE_CACHE);
+    }
+    Task<Integer> countInBackground = countQuery.countInBackground();
+    cancelQueryOnRequest(countQuery, ct, countInBackground);
+    final Task<Integer> task = cancellable(countInBackground, ct);
+    synchronized (lock) {
+      countTask = task;
+    }
+    task.continueWith(new Continuation<Integer, Void>() {
+      @Override
+      public Void then(Task<Integer> task) throws Exception {
+        if (task.isCancelled() || task.isFaulted()) {
+          // The total stays unknown until the last page is loaded
+          return null;
+        }
+        synchronized (lock) {
+          totalCount = task.getResult();
+          notifyChanged();
+        }
+        dispatchNotifications();
+        return null;
+      }
+    }, Task.UI_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Adds {@code page} from the local datastore, then replaces it with the network results and
+   * pins them. Both queries are started at once.
+   *
+   * @return A {@link Task} that resolves to the network results.
+   */
+  private Task<List<T>> loadPageLocalDatastoreFirst(final int page, final ParseQuery<T> query,
+      final FindCallback<T> callback, final CancellationToken ct) {
+    ParseQuery<T> localQuery = new ParseQuery<>(query).fromLocalDatastore();
+    final Task<List<T>> networkTask = findAsync(query, ct);
+    final Capture<List<T>> localResults = new Capture<>();
+    return findAsync(localQuery, ct).continueWithTask(new Continuation<List<T>, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<List<T>> task) throws Exception {
+        if (task.isCancelled() || task.isFaulted()) {
+          // Nothing to show yet, wait on the network
+          return networkTask;
+        }
+        List<T> results = task.getResult();
+        onPage(query, page, results);
+        localResults.set(results);
+        if (callback != null) {
+          callback.done(results, null);
+        }
+        return networkTask;
+      }
+    }, Task.UI_THREAD_EXECUTOR).continueWithTask(new Continuation<List<T>, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<List<T>> task) throws Exception {
+        if (task.isCancelled()) {
+          return task;
+        }
+        if (task.isFaulted()) {
+          if (callback != null) {
+            callback.done(null, toParseException(task.getError()));
+          }
+          return task;
+        }
+        List<T> results = task.getResult();
+        onPage(query, page, results);
+        if (callback != null) {
+          callback.done(results, null);
+        }
+        pinRevalidatedPage(localResults.get(), results);
+        return task;
+      }
+    }, Task.UI_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Pins the network results of a page, and unpins the local results that weren't in them.
+   */
+  private void pinRevalidatedPage(List<T> localResults, List<T> networkResults) {
+    ParseObject.pinAllInBackground(PIN_NAME, networkResults);
+    if (localResults == null) {
+      return;
+    }
+    Set<String> objectIds = new HashSet<>();
+    for (T object : networkResults) {
+      objectIds.add(object.getObjectId());
+    }
+    List<T> stale = new ArrayList<>();
+    for (T object : localResults) {
+      if (!objectIds.contains(object.getObjectId())) {
+        stale.add(object);
+      }
+    }
+    if (!stale.isEmpty()) {
+      ParseObject.unpinAllInBackground(PIN_NAME, stale);
+    }
+  }
+
+  /**
+   * Loads the next {@code pageCount} pages at once, for example to restore a deep scroll position.
+   *
+   * The pages are requested in parallel, with at most {@code maxConcurrentRequests} in flight at a
+   * time, and are added to the objects together once they've all arrived, as a single inserted
+   * range. If any page fails, none of them are added. Pages after the last one with results are
+   * dropped.
+   *
+   * Pagers whose queries depend on the previous page, such as {@link ParseQueryKeysetPager}, load
+   * the pages one after another instead.
+   *
+   * @param pageCount The number of pages to load.
+   * @param maxConcurrentRequests The maximum number of pages to request at a time.
+   * @param ct Token used to cancel the task.
+   * @return A {@link Task} that resolves to the objects of the loaded pages.
+   */
+  public Task<List<T>> loadPages(int pageCount, int maxConcurrentRequests,
+      final CancellationToken ct) {
+    if (!hasNextPage()) {
+      throw new IllegalStateException("Unable to load next page when there are no more pages available");
+    }
+    if (pageCount < 1 || maxConcurrentRequests < 1) {
+      throw new IllegalArgumentException("pageCount and maxConcurrentRequests must be positive");
+    }
+
+    final int firstPage = getCurrentPage() + 1;
+    onLoadRequested(firstPage, ct);
+    Task<Void> loadTask;
+    if (!canLoadPagesInParallel()) {
+      loadTask = Task.forResult(null);
+      for (int i = 0; i < pageCount; i++) {
+        loadTask = loadTask.onSuccessTask(new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            if (!hasNextPage()) {
+              return task;
+            }
+            return findNextPage(ct).makeVoid();
+          }
+        }, Task.UI_THREAD_EXECUTOR);
+      }
+    } else {
+      // Any prefetch would be requested again by us
+      takePrefetch(-1);
+
+      final List<ParseQuery<T>> queries = new ArrayList<>();
+      final List<List<T>> pageResults = new ArrayList<>();
+      for (int i = 0; i < pageCount; i++) {
+        queries.add(createQuery(firstPage + i));
+        pageResults.add(null);
+      }
+      AtomicInteger nextIndex = new AtomicInteger();
+      List<Task<Void>> tasks = new ArrayList<>();
+      for (int i = 0; i < Math.min(pageCount, maxConcurrentRequests); i++) {
+        tasks.add(loadPagesInOrder(queries, pageResults, nextIndex, ct));
+      }
+      loadTask = Task.whenAll(tasks).continueWithTask(new Continuation<Void, Task<Void>>() {
+        @Override
+        public Task<Void> then(Task<Void> task) throws Exception {
+          if (task.isCancelled() || task.isFaulted()) {
+            return task;
+          }
+          if (ct != null && ct.isCancellationRequested()) {
+            return Task.cancelled();
+          }
+          onPages(firstPage, queries, pageResults);
+          return task;
+        }
+      }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    Task<List<T>> task = loadTask.onSuccess(new Continuation<Void, List<T>>() {
+      @Override
+      public List<T> then(Task<Void> task) throws Exception {
+        synchronized (lock) {
+          int start = Math.min(objects.size(), pageSize * firstPage);
+          return new ArrayList<>(objects.subList(start, objects.size()));
+        }
+      }
+    });
+
+    setLoadNextPageTask(task);
+
+    return task;
+  }
+
+  /**
+   * Loads the queries one at a time, taking the next one that no other call has taken yet, until
+   * there are none left.
+   */
+  private Task<Void> loadPagesInOrder(final List<ParseQuery<T>> queries,
+      final List<List<T>> pageResults, final AtomicInteger nextIndex, final CancellationToken ct) {
+    final int index = nextIndex.getAndIncrement();
+    if (index >= queries.size()) {
+      return Task.forResult(null);
+    }
+    return findAsync(queries.get(index), ct).onSuccessTask(new Continuation<List<T>, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<List<T>> task) throws Exception {
+        synchronized (pageResults) {
+          pageResults.set(index, task.getResult());
+        }
+        return loadPagesInOrder(queries, pageResults, nextIndex, ct);
+      }
+    });
+  }
+
+  /**
+   * @return whether the query of a page can be created before the previous page has loaded, so
+   * that several pages can be loaded at once.
+   */
+  /* package */ boolean canLoadPagesInParallel() {
+    return true;
+  }
+
+  /**
+   * @return the position last passed to {@link #prefetchIfNeeded(int)}, which is where the
+   * consumer was reading.
+   */
+  public int getAnchorPosition() {
+    synchronized (lock) {
+      return lastReadPosition;
+    }
+  }
+
+  /**
+   * Saves a snapshot of the loaded objects to {@code outState}, so that it can be restored with
+   * {@link #restoreState(Bundle)} after the process is killed.
+   *
+   * To keep the snapshot small, only the pages around the {@link #getAnchorPosition() anchor} and
+   * the last page are saved with their data, up to 50 objects. The rest are saved by
+   * {@code objectId}, and are restored as evicted pages that are reloaded when they're read. At
+   * most the first 1000 objects are saved, later pages are loaded again as next pages.
+   *
+   * Objects without an {@code objectId}, such as ones that haven't been saved yet, can't be
+   * reloaded, so the snapshot ends before the first page containing one. Nothing is saved if that
+   * is the first page.
+   *
+   * @param outState The bundle to save the snapshot to.
+   */
+  public void saveState(Bundle outState) {
+    synchronized (lock) {
+      int lastPage = Math.min(currentPage, MAX_SAVED_OBJECT_IDS / pageSize - 1);
+      ArrayList<String> objectIds = new ArrayList<>();
+      for (int i = 0; i < Math.min(objects.size(), pageSize * (lastPage + 1)); i++) {
+        String objectId = objects.get(i).getObjectId();
+        if (objectId == null) {
+          lastPage = i / pageSize - 1;
+          objectIds.subList(pageSize * (lastPage + 1), objectIds.size()).clear();
+          break;
+        }
+        objectIds.add(objectId);
+      }
+      if (lastPage < 0) {
+        return;
+      }
+
+      // Pages closest to the anchor are saved with their data first
+      int anchorPage = Math.min(lastReadPosition / pageSize, lastPage);
+      List<Integer> candidatePages = new ArrayList<>();
+      candidatePages.add(anchorPage);
+      for (int distance = 1; distance <= SAVED_PAGE_RADIUS; distance++) {
+        candidatePages.add(anchorPage - distance);
+        candidatePages.add(anchorPage + distance);
+      }
+      candidatePages.add(lastPage);
+      Set<Integer> pages = new TreeSet<>();
+      int savedCount = 0;
+      for (int page : candidatePages) {
+        if (page < 0 || page > lastPage || evictedPages.contains(page) || pages.contains(page)) {
+          continue;
+        }
+        int count = Math.min(objectIds.size(), pageSize * (page + 1)) - pageSize * page;
+        if (savedCount + count > MAX_SAVED_OBJECTS) {
+          continue;
+        }
+        pages.add(page);
+        savedCount += count;
+      }
+      ArrayList<Integer> savedPages = new ArrayList<>(pages);
+      ArrayList<T> savedObjects = new ArrayList<>(savedCount);
+      for (int page : savedPages) {
+        savedObjects.addAll(
+            objects.subList(pageSize * page, Math.min(objectIds.size(), pageSize * (page + 1))));
+      }
+
+      outState.putStringArrayList(KEY_OBJECT_IDS, objectIds);
+      outState.putIntegerArrayList(KEY_SAVED_PAGES, savedPages);
+      outState.putParcelableArrayList(KEY_SAVED_OBJECTS, savedObjects);
+      outState.putInt(KEY_CURRENT_PAGE, lastPage);
+      outState.putBoolean(KEY_HAS_NEXT_PAGE, lastPage < currentPage || hasNextPage);
+      outState.putInt(KEY_ANCHOR_POSITION, Math.min(lastReadPosition, objectIds.size() - 1));
+    }
+  }
+
+  /**
+   * @return whether {@code state} holds a snapshot saved with {@link #saveState(Bundle)}.
+   */
+  /* package */ static boolean hasSavedState(Bundle state) {
+    return state != null && state.containsKey(KEY_OBJECT_IDS);
+  }
+
+  /**
+   * Restores a snapshot saved with {@link #saveState(Bundle)}, and reports the restored objects
+   * as inserted. The objects may be stale, so consumers should {@link #refresh(CancellationToken)}
+   * once they've rendered them.
+   *
+   * @param state The bundle the snapshot was saved to, or {@code null}.
+   * @return whether there was a snapshot to restore.
+   * @throws IllegalStateException if objects have already been loaded.
+   */
+  public boolean restoreState(Bundle state) {
+    if (!hasSavedState(state)) {
+      return false;
+    }
+    ArrayList<String> objectIds = state.getStringArrayList(KEY_OBJECT_IDS);
+    ArrayList<Integer> savedPages = state.getIntegerArrayList(KEY_SAVED_PAGES);
+    ArrayList<T> savedObjects = state.getParcelableArrayList(KEY_SAVED_OBJECTS);
+    if (objectIds == null || savedPages == null || savedObjects == null) {
+      return false;
+    }
+
+    synchronized (lock) {
+      if (currentPage >= 0 || isLoadingNextPage()) {
+        throw new IllegalStateException("Unable to restore a pager that has already loaded objects");
+      }
+      String className = query.getClassName();
+      for (String objectId : objectIds) {
+        @SuppressWarnings("unchecked")
+        T stub = (T) ParseObject.createWithoutData(className, objectId);
+        objects.add(stub);
+      }
+      currentPage = state.getInt(KEY_CURRENT_PAGE);
+      hasNextPage = state.getBoolean(KEY_HAS_NEXT_PAGE);
+      lastReadPosition = state.getInt(KEY_ANCHOR_POSITION);
+      for (int page = 0; page <= currentPage; page++) {
+        evictedPages.add(page);
+      }
+      int savedIndex = 0;
+      for (int page : savedPages) {
+        int end = Math.min(objects.size(), pageSize * (page + 1));
+        for (int i = pageSize * page; i < end; i++) {
+          objects.set(i, savedObjects.get(savedIndex++));
+        }
+        evictedPages.remove(page);
+      }
+      publishLocked();
+
+      notifyRangeInserted(0, objects.size());
+    }
+    dispatchNotifications();
+    return true;
+  }
+
+  /**
+   * Reloads the loaded pages in place.
+   *
+   * Instead of clearing the objects and loading them again from the first page, the loaded pages
+   * are queried again in one request and diffed against the objects on a background thread. Only
+   * the objects that were inserted, removed, moved or updated are applied, and reported through
+   * the matching {@link OnObjectsChangedCallback} ranges, so consumers don't have to rebind what
+   * didn't change. Objects are matched by {@code objectId} and are changed if their
+   * {@code updatedAt} differs.
+   *
+   * If nothing has been loaded yet this is the same as {@link #loadNextPage(CancellationToken)}.
+   * It shouldn't be called while the next page is loading.
+   *
+   * @param ct Token used to cancel the task.
+   * @return A {@link Task} that resolves to the refreshed objects.
+   */
+  public Task<List<T>> refresh(final CancellationToken ct) {
+    final int pageCount;
+    final List<T> oldObjects;
+    final int oldModCount;
+    synchronized (lock) {
+      if (currentPage < 0) {
+        return loadNextPage(ct);
+      }
+      pageCount = currentPage + 1;
+      oldObjects = new ArrayList<>(objects);
+      oldModCount = modCount;
+    }
+    // Any prefetch is of the page after the old ones
+    takePrefetch(-1);
+    onLoadRequested(0, ct);
+
+    final ParseQuery<T> query = createQuery(0);
+    final int limit = query.getLimit();
+    final boolean isPaginated = limit != -1 && limit != pageSize;
+    final int refreshedCount;
+    if (!isPaginated) {
+      refreshedCount = Integer.MAX_VALUE;
+    } else if (limit == pageSize + 1) {
+      refreshedCount = pageSize * pageCount;
+      // Limit is one more than the loaded objects so we can detect if there are more pages
+      query.setLimit(refreshedCount + 1);
+    } else {
+      // Paged some other way, so only the first page can be refreshed
+      refreshedCount = pageSize;
+    }
+
+    final Capture<Boolean> hasMore = new Capture<>(false);
+    final Capture<DiffUtil.DiffResult> diff = new Capture<>();
+    Task<List<T>> task = findAsync(query, ct).onSuccess(new Continuation<List<T>, List<T>>() {
+      @Override
+      public List<T> then(Task<List<T>> task) throws Exception {
+        List<T> results = new ArrayList<>(task.getResult());
+        onPageResults(query, 0, results);
+        if (results.size() > refreshedCount) {
+          hasMore.set(true);
+          results.subList(refreshedCount, results.size()).clear();
+        }
+        diff.set(DiffUtil.calculateDiff(new ParseObjectDiffCallback<>(oldObjects, results)));
+        return results;
+      }
+    }, Task.BACKGROUND_EXECUTOR).continueWithTask(new Continuation<List<T>, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<List<T>> task) throws Exception {
+        if (task.isCancelled() || task.isFaulted()) {
+          return task;
+        }
+        if (ct != null && ct.isCancellationRequested()) {
+          return Task.cancelled();
+        }
+        onRefresh(task.getResult(), hasMore.get(), oldModCount, diff.get());
+        return task;
+      }
+    }, Task.UI_THREAD_EXECUTOR);
+
+    setLoadNextPageTask(task);
+
+    return task;
+  }
+
+  private void onRefresh(List<T> results, boolean hasMore, int oldModCount,
+      DiffUtil.DiffResult diff) {
+    synchronized (lock) {
+      boolean isStale = modCount != oldModCount;
+      currentPage = Math.max(0, (results.size() + pageSize - 1) / pageSize - 1);
+      hasNextPage = hasMore;
+      objects.clear();
+      objects.addAll(results);
+      evictedPages.clear();
+      publishLocked();
+
+      if (isStale) {
+        // The objects changed while we were diffing, so the diff doesn't apply to them anymore.
+        notifyChanged();
       } else {
-        notifyRangeChanged(positionStart, itemCount);
+        dispatchDiff(diff, 0);
+      }
+      trimToMaxLoadedPagesLocked();
+    }
+    dispatchNotifications();
+  }
+
+  /**
+   * Creates the query that evicted pages are reloaded with, before their {@code objectId}s are
+   * constrained. It shouldn't be paged.
+   */
+  /* package */ ParseQuery<T> createReloadQuery() {
+    return new ParseQuery<>(getQuery());
+  }
+
+  /**
+   * Called with the results of {@code query} before they're added to the loaded objects, so that
+   * results that are already loaded can be filtered out.
+   *
+   * @param query The query that loaded {@code results}.
+   * @param page The page {@code results} belong to.
+   * @param results The results, which may be modified.
+   */
+  /* package */ void onPageResults(ParseQuery<T> query, int page, List<T> results) {
+    // do nothing
+  }
+
+  private void onPage(ParseQuery<T> query, int page, List<T> results) {
+    onPages(page, Collections.singletonList(query), Collections.singletonList(results));
+  }
+
+  /**
+   * Adds consecutive pages starting at {@code firstPage} to the objects, notifying the pages that
+   * are appended as one inserted range. Stops at the first page without a next page.
+   */
+  private void onPages(int firstPage, List<ParseQuery<T>> queries, List<List<T>> pageResults) {
+    synchronized (lock) {
+      int insertStart = -1;
+      int insertCount = 0;
+      for (int i = 0; i < queries.size(); i++) {
+        int page = firstPage + i;
+        ParseQuery<T> query = queries.get(i);
+        List<T> results = pageResults.get(i);
+        onPageResults(query, page, results);
+
+        currentPage = page;
+        int limit = query.getLimit();
+        if (limit == -1 || limit == pageSize) {
+          // Backwards compatibility hack to support ParseQueryAdapter#setPaginationEnabled(false)
+          hasNextPage = false;
+        } else {
+          // We detect if there are more pages by setting the limit pageSize + 1 and we remove the
+          // extra if there are more pages.
+          hasNextPage = results.size() >= pageSize + 1;
+          if (results.size() > pageSize) {
+            // Keyset pages may come back with more than one extra result
+            results.subList(pageSize, results.size()).clear();
+          }
+        }
+        int itemCount = results.size();
+        int objectsSize = objects.size();
+        int positionStart = pageSize * page;
+        List<T> replaced = null;
+        if (objectsSize > positionStart) {
+          List<T> oldPage =
+              objects.subList(positionStart, Math.min(objectsSize, pageSize * (page + 1)));
+          replaced = new ArrayList<>(oldPage);
+          oldPage.clear();
+        }
+        objects.addAll(positionStart, results);
+
+        evictedPages.remove(page);
+
+        if (replaced != null) {
+          // The page was loaded again, such as a revalidation of cached results. Pages are small
+          // enough to diff here.
+          dispatchDiff(DiffUtil.calculateDiff(
+              new ParseObjectDiffCallback<>(replaced, results)), positionStart);
+        } else if (insertStart < 0) {
+          insertStart = positionStart;
+          insertCount = itemCount;
+        } else {
+          insertCount += itemCount;
+        }
+        if (!hasNextPage) {
+          break;
+        }
+      }
+      publishLocked();
+
+      if (insertStart >= 0) {
+        notifyRangeInserted(insertStart, insertCount);
       }
+      trimToMaxLoadedPagesLocked();
     }
+    dispatchNotifications();
   }
 }
@@ -0,0 +1,251 @@
+/*
+ *  Copyright (c) 2014, Parse, LLC. All rights reserved.
+ *
+ *  You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ *  copy, modify, and distribute this software in source code or binary form for use
+ *  in connection with the web services and APIs provided by Parse.
+ *
+ *  As with any software that integrates with the Parse platform, your use of
+ *  this software is subject to the Parse Terms of Service
+ *  [https://www.parse.com/about/terms]. This copyright notice shall be
+ *  included in all copies or substantial portions of the software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ *  FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ *  COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ *  IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ *  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.parse.ui.widget;
+
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.parse.ParseObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * A {@link RecyclerView.Adapter} that displays the objects of a {@link ParseQueryPager}.
+ * <p>
+ * Unlike {@link ParseQueryAdapter}, which rebinds every visible row after each page, this adapter
+ * turns the pager's {@link ParseQueryPager.OnObjectsChangedCallback} events into fine-grained
+ * notifications. Appended pages are inserted directly. Any other change, such as a page being
+ * reloaded or evicted, is diffed against the displayed rows on a background thread, matching rows
+ * by {@code objectId} and rebinding those whose {@code updatedAt} changed.
+ * <pre>
+ * ParseQueryPager&lt;ParseObject&gt; pager = new ParseQueryPager&lt;&gt;(query);
+ * recyclerView.setAdapter(new ParseRecyclerQueryAdapter&lt;ParseObject, TodoViewHolder&gt;(pager) {
+ *   &#64;Override
+ *   public TodoViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+ *     return new TodoViewHolder(inflater.inflate(R.layout.todo, parent, false));
+ *   }
+ *
+ *   &#64;Override
+ *   public void onBindViewHolder(TodoViewHolder holder, int position) {
+ *     holder.bind(getItem(position));
+ *   }
+ * });
+ * pager.loadNextPage();
+ * </pre>
+ *
+ * @param <T> A class that extends {@link ParseObject}
+ * @param <VH> The {@link RecyclerView.ViewHolder} of the adapter's rows
+ */
+public abstract class ParseRecyclerQueryAdapter<T extends ParseObject,
+    VH extends RecyclerView.ViewHolder> extends RecyclerView.Adapter<VH> {
+
+  private final ParseQueryPager<T> pager;
+  private final ParseQueryPager.OnObjectsChangedCallback<ParseQueryPager<T>> callback =
+      new ParseQueryPager.OnObjectsChangedCallback<ParseQueryPager<T>>() {
+        @Override
+        public void onChanged(ParseQueryPager<T> sender) {
+          onPagerChanged(-1, 0);
+        }
+
+        @Override
+        public void onItemRangeChanged(ParseQueryPager<T> sender, int positionStart,
+            int itemCount) {
+          onPagerChanged(-1, 0);
+        }
+
+        @Override
+        public void onItemRangeInserted(ParseQueryPager<T> sender, int positionStart,
+            int itemCount) {
+          onPagerChanged(positionStart, itemCount);
+        }
+
+        @Override
+        public void onItemRangeMoved(ParseQueryPager<T> sender, int fromPosition, int toPosition,
+            int itemCount) {
+          onPagerChanged(-1, 0);
+        }
+
+        @Override
+        public void onItemRangeRemoved(ParseQueryPager<T> sender, int positionStart,
+            int itemCount) {
+          onPagerChanged(-1, 0);
+        }
+      };
+
+  // The displayed objects. Only accessed on the UI thread.
+  private List<T> items = new ArrayList<>();
+  // Only one diff runs at a time, changes made while it runs are diffed once it has been applied.
+  private boolean isDiffing = false;
+  private boolean isDiffPending = false;
+  private int attachedCount = 0;
+
+  /**
+   * Constructs a new instance of {@code ParseRecyclerQueryAdapter} displaying the objects of
+   * {@code pager}.
+   *
+   * @param pager The pager whose objects should be displayed.
+   */
+  public ParseRecyclerQueryAdapter(ParseQueryPager<T> pager) {
+    this.pager = pager;
+    setHasStableIds(true);
+  }
+
+  /**
+   * @return the pager whose objects this adapter displays.
+   */
+  public ParseQueryPager<T> getPager() {
+    return pager;
+  }
+
+  /**
+   * @param position The position of the object.
+   * @return the displayed object at {@code position}.
+   */
+  public T getItem(int position) {
+    return items.get(position);
+  }
+
+  @Override
+  public int getItemCount() {
+    return items.size();
+  }
+
+  /**
+   * Returns an id derived from the {@code objectId} of the object at {@code position}.
+   *
+   * @see ParseQueryPager#getItemId(ParseObject)
+   */
+  @Override
+  public long getItemId(int position) {
+    return pager.getItemId(items.get(position));
+  }
+
+  @Override
+  public void onBindViewHolder(@NonNull VH holder, int position, @NonNull List<Object> payloads) {
+    // Let the pager prefetch the next page and reload evicted ones as rows are displayed.
+    pager.prefetchIfNeeded(position);
+    super.onBindViewHolder(holder, position, payloads);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+    super.onAttachedToRecyclerView(recyclerView);
+    if (attachedCount++ == 0) {
+      pager.addOnObjectsChangedCallback(callback);
+      // Catch up on anything loaded while we weren't listening
+      onPagerChanged(-1, 0);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+    super.onDetachedFromRecyclerView(recyclerView);
+    if (--attachedCount == 0) {
+      pager.removeOnObjectsChangedCallback(callback);
+    }
+  }
+
+  /**
+   * Returns whether two versions of an object should be displayed the same way. By default they
+   * are if neither has been updated since the other was loaded.
+   *
+   * This is called on a background thread.
+   *
+   * @param oldObject The displayed object.
+   * @param newObject The object that replaces it, with the same {@code objectId}.
+   * @return whether {@code oldObject}'s row can be kept without rebinding it.
+   */
+  protected boolean areContentsTheSame(T oldObject, T newObject) {
+    return ParseObjectDiffCallback.areContentsTheSame(oldObject, newObject);
+  }
+
+  private void onPagerChanged(final int insertStart, final int insertCount) {
+    if (Looper.myLooper() != Looper.getMainLooper()) {
+      Task.call(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          onPagerChanged(insertStart, insertCount);
+          return null;
+        }
+      }, Task.UI_THREAD_EXECUTOR);
+      return;
+    }
+
+    if (isDiffing) {
+      isDiffPending = true;
+      return;
+    }
+    List<T> objects = pager.getObjects();
+    if (insertStart == items.size()
+        && objects.size() == items.size() + insertCount) {
+      // A page was appended to what we're displaying, no need to diff
+      items.addAll(objects.subList(insertStart, insertStart + insertCount));
+      notifyItemRangeInserted(insertStart, insertCount);
+      return;
+    }
+    diff(new ArrayList<>(objects));
+  }
+
+  private void diff(final List<T> newItems) {
+    final List<T> oldItems = items;
+    isDiffing = true;
+    Task.callInBackground(new Callable<DiffUtil.DiffResult>() {
+      @Override
+      public DiffUtil.DiffResult call() throws Exception {
+        return DiffUtil.calculateDiff(new ParseObjectDiffCallback<T>(oldItems, newItems) {
+          @Override
+          /* package */ boolean areObjectContentsTheSame(T oldObject, T newObject) {
+            return ParseRecyclerQueryAdapter.this.areContentsTheSame(oldObject, newObject);
+          }
+        });
+      }
+    }).continueWith(new Continuation<DiffUtil.DiffResult, Void>() {
+      @Override
+      public Void then(Task<DiffUtil.DiffResult> task) throws Exception {
+        isDiffing = false;
+        items = newItems;
+        if (task.isFaulted()) {
+          notifyDataSetChanged();
+        } else {
+          task.getResult().dispatchUpdatesTo(ParseRecyclerQueryAdapter.this);
+        }
+        if (isDiffPending) {
+          // The pager changed again while we were diffing, diff what we just applied against its
+          // latest objects.
+          isDiffPending = false;
+          diff(new ArrayList<>(pager.getObjects()));
+        }
+        return null;
+      }
+    }, Task.UI_THREAD_EXECUTOR);
+  }
+}